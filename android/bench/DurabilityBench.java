@@ -0,0 +1,105 @@
+/*
+ * Compares the durability modes on a large asset tree. Each iteration writes a fresh tree of
+ * files as an install extracts them, then syncs it before the switch, and the median time of
+ * each step is printed. Android classes RNAirDurability uses are stood in for by shim/, so it
+ * runs on a plain JVM from this folder:
+ *
+ *   javac -d out DurabilityBench.java ../src/main/java/com/kh/rnairlite/RNAirDurability.java \
+ *       $(find shim -name "*.java")
+ *
+ * Run it on the file system to measure, since fsync costs depend on the device far more than on
+ * the CPU:
+ *
+ *   java -cp out DurabilityBench folder [files] [file size] [iterations]
+ */
+
+import com.kh.rnairlite.RNAirDurability;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class DurabilityBench {
+    // Files are spread over folders like assets of a bundle, which are synced as well.
+    private static final int FilesPerFolder = 100;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: DurabilityBench folder [files] [file size] [iterations]");
+            System.exit(1);
+        }
+
+        File root = new File(args[0]);
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int fileSize = args.length > 2 ? Integer.parseInt(args[2]) : 16 * 1024;
+        int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        if (!root.isDirectory() && !root.mkdirs()) {
+            System.err.println("Fail to create " + root);
+            System.exit(1);
+        }
+
+        byte[] content = new byte[fileSize];
+        new Random(0).nextBytes(content);
+        System.out.println(String.format("%d files of %d bytes, %d iterations", files, fileSize,
+                iterations));
+        for (RNAirDurability.Mode mode : RNAirDurability.Mode.values()) {
+            long[] writeMs = new long[iterations];
+            long[] syncMs = new long[iterations];
+            RNAirDurability durability = new RNAirDurability(mode);
+            for (int i = 0; i < iterations; ++i) {
+                File tree = new File(root, "tree_" + mode + "_" + i);
+                long startedAt = System.nanoTime();
+                write(durability, tree, files, content);
+                writeMs[i] = (System.nanoTime() - startedAt) / 1000000;
+
+                startedAt = System.nanoTime();
+                String result = durability.syncTree(tree);
+                syncMs[i] = (System.nanoTime() - startedAt) / 1000000;
+                delete(tree);
+                if (result != null) {
+                    System.out.println(mode + ": " + result);
+                    System.exit(1);
+                }
+            }
+
+            System.out.println(String.format("%-8s write %6dms  sync %6dms  total %6dms", mode,
+                    median(writeMs), median(syncMs), median(writeMs) + median(syncMs)));
+        }
+    }
+
+    private static void write(RNAirDurability durability, File tree, int files, byte[] content)
+            throws IOException {
+        for (int i = 0; i < files; ++i) {
+            File folder = new File(tree, "folder_" + i / FilesPerFolder);
+            if (!folder.isDirectory() && !folder.mkdirs()) {
+                throw new IOException("Fail to create " + folder);
+            }
+
+            File file = new File(folder, "asset_" + i);
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(content);
+                durability.onFileWritten(out, file);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+
+        file.delete();
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Compares the Java patch engine against the native one on a plain JVM. Both run the same
+ * package, their outputs are checked to be equal, and the median time of each step is printed.
+ * Build the native library for the host and run it from this folder:
+ *
+ *   J=$JAVA_HOME; JNI=../src/main/jni; SRC=../src/main/java/com/kh/rnairlite
+ *   gcc -O2 -fPIC -c -I$JNI $JNI/bz2_parallel.c $JNI/libminibsdiff/bspatch.c \
+ *       $JNI/libbzip2/{blocksort,bzlib,compress,crctable,decompress,huffman,randtable}.c
+ *   g++ -O2 -shared -fPIC -pthread -I$JNI -I$J/include -I$J/include/linux \
+ *       -o libDiffAndBz2.so $JNI/rnairlite_module.cpp *.o
+ *   CP=commons-compress.jar:commons-io.jar:support-annotations.jar
+ *   javac -cp $CP -d out PatchEngineBench.java \
+ *       $SRC/{RNAirPatchEngine,RNAirJavaPatchEngine,RNAirNativePatchEngine}.java
+ *   java -cp out:$CP -Djava.library.path=. PatchEngineBench package [old] [iterations]
+ *
+ * The package is a base or a patch built by airpatch. For a patch, old is the assets.tar or the
+ * bundle it applies to. Without the native library, only the Java engine is measured.
+ */
+
+import com.kh.rnairlite.RNAirJavaPatchEngine;
+import com.kh.rnairlite.RNAirNativePatchEngine;
+import com.kh.rnairlite.RNAirPatchEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PatchEngineBench {
+    // Packages start with a header of the pack version, the version and the SHA-256.
+    private static final int PackHeaderLength = 64;
+
+    private static class Result {
+        long[] mDecompressMs;
+        long[] mPatchMs;
+        ByteBuffer mOutput;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: PatchEngineBench package [old] [iterations]");
+            System.exit(1);
+        }
+
+        ByteBuffer pack = read(new File(args[0]), PackHeaderLength);
+        ByteBuffer old = args.length > 1 ? read(new File(args[1]), 0) : null;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Map<String, RNAirPatchEngine> engines = new LinkedHashMap<>();
+        engines.put("java", new RNAirJavaPatchEngine());
+        if (RNAirNativePatchEngine.isAvailable()) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            engines.put("native x1", new RNAirNativePatchEngine(1));
+            if (cores > 1) engines.put("native x" + cores, new RNAirNativePatchEngine(cores));
+        } else {
+            System.out.println("The native library is unavailable. Measure the Java engine only.");
+        }
+
+        ByteBuffer expected = null;
+        for (Map.Entry<String, RNAirPatchEngine> entry : engines.entrySet()) {
+            Result result = run(entry.getValue(), pack, old, iterations);
+            if (result == null) {
+                System.out.println(entry.getKey() + ": failed");
+                System.exit(1);
+            }
+
+            if (expected == null) {
+                expected = result.mOutput;
+            } else if (!expected.equals(result.mOutput)) {
+                System.out.println(entry.getKey() + ": output differs from " +
+                        engines.keySet().iterator().next());
+                System.exit(1);
+            }
+
+            System.out.println(String.format("%-10s decompress %6dms  patch %6dms  output %d bytes",
+                    entry.getKey(), median(result.mDecompressMs), median(result.mPatchMs),
+                    result.mOutput.capacity()));
+        }
+    }
+
+    private static Result run(RNAirPatchEngine engine, ByteBuffer pack, ByteBuffer old,
+                              int iterations) {
+        Result result = new Result();
+        result.mDecompressMs = new long[iterations];
+        result.mPatchMs = new long[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            long startedAt = System.nanoTime();
+            ByteBuffer decompressed = engine.decompress(pack.duplicate());
+            result.mDecompressMs[i] = (System.nanoTime() - startedAt) / 1000000;
+            if (decompressed == null) return null;
+            result.mOutput = decompressed;
+            if (old == null) continue;
+
+            startedAt = System.nanoTime();
+            result.mOutput = engine.patch(old.duplicate(), decompressed);
+            result.mPatchMs[i] = (System.nanoTime() - startedAt) / 1000000;
+            if (result.mOutput == null) return null;
+        }
+
+        return result;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    // Reads the file from offset into a direct buffer of exactly its bytes, as RNAirFS does.
+    private static ByteBuffer read(File file, int offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) (channel.size() - offset));
+            channel.position(offset);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) throw new IOException("Truncated " + file);
+            }
+
+            buffer.flip();
+            return buffer;
+        } finally {
+            raf.close();
+        }
+    }
+}
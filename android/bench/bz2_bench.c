@@ -0,0 +1,107 @@
+/*
+ * Measures the parallel bzip2 decoder of the native patch engine by thread count against the
+ * serial decoder. Build and run it on a host or with adb on a device:
+ *
+ *   cc -O2 -pthread -I../src/main/jni -o bz2_bench bz2_bench.c ../src/main/jni/bz2_parallel.c \
+ *       ../src/main/jni/libbzip2/{blocksort,bzlib,compress,crctable,decompress,huffman,randtable}.c
+ *   ./bz2_bench base.bz2 [max threads]
+ *
+ * A package built by airpatch holds the bzip2 stream after its 64 bytes header, which could be
+ * stripped with "tail -c +65 base > base.bz2".
+ */
+#include "bz2_parallel.h"
+#include "libbzip2/bzlib.h"
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+static double now_ms(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+static char* read_file(const char* path, size_t* size) {
+    FILE* file = fopen(path, "rb");
+    if (file == NULL) return NULL;
+    fseek(file, 0, SEEK_END);
+    *size = ftell(file);
+    fseek(file, 0, SEEK_SET);
+    char* data = (char*) malloc(*size);
+    if (data != NULL && fread(data, 1, *size, file) != *size) {
+        free(data);
+        data = NULL;
+    }
+
+    fclose(file);
+    return data;
+}
+
+static char* decode_serial(const char* input, size_t inputSize, size_t* outputSize) {
+    unsigned int capacity = inputSize * 10;
+    while (1) {
+        char* output = (char*) malloc(capacity);
+        unsigned int size = capacity;
+        int result = BZ2_bzBuffToBuffDecompress(output, &size, (char*) input, inputSize, 0, 0);
+        if (result == BZ_OK) {
+            *outputSize = size;
+            return output;
+        }
+
+        free(output);
+        if (result != BZ_OUTBUFF_FULL) return NULL;
+        capacity *= 2;
+    }
+}
+
+int main(int argc, char** argv) {
+    if (argc < 2) {
+        fprintf(stderr, "Usage: %s <file.bz2> [max threads]\n", argv[0]);
+        return 1;
+    }
+
+    size_t inputSize = 0;
+    char* input = read_file(argv[1], &inputSize);
+    if (input == NULL) {
+        fprintf(stderr, "Fail to read %s\n", argv[1]);
+        return 1;
+    }
+
+    int maxThreads = argc > 2 ? atoi(argv[2]) : (int) sysconf(_SC_NPROCESSORS_ONLN);
+    double startedAt = now_ms();
+    size_t expectedSize = 0;
+    char* expected = decode_serial(input, inputSize, &expectedSize);
+    double serialMs = now_ms() - startedAt;
+    if (expected == NULL) {
+        fprintf(stderr, "%s is not a bzip2 stream\n", argv[1]);
+        return 1;
+    }
+
+    printf("%zu bytes into %zu bytes, %ld cores online\n", inputSize, expectedSize,
+           sysconf(_SC_NPROCESSORS_ONLN));
+    printf("serial: %.1fms\n", serialMs);
+    int threads;
+    for (threads = 1; threads <= maxThreads; threads *= 2) {
+        char* output = NULL;
+        size_t outputSize = 0;
+        startedAt = now_ms();
+        int result = bz2_parallel_decompress(input, inputSize, threads, &output, &outputSize);
+        double ms = now_ms() - startedAt;
+        if (result != 0) {
+            printf("%d threads: failed, fewer than 2 blocks?\n", threads);
+            break;
+        }
+
+        int same = outputSize == expectedSize && memcmp(output, expected, outputSize) == 0;
+        printf("%d threads: %.1fms, %.2fx %s\n", threads, ms, serialMs / ms,
+               same ? "" : "MISMATCH");
+        free(output);
+    }
+
+    free(expected);
+    free(input);
+    return 0;
+}
@@ -0,0 +1,12 @@
+package android.os;
+
+// Stands in for the Android class when a bench runs on a plain JVM.
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = 21;
+    }
+
+    public static class VERSION_CODES {
+        public static final int LOLLIPOP = 21;
+    }
+}
@@ -0,0 +1,8 @@
+package android.os;
+
+// Stands in for the Android class when a bench runs on a plain JVM.
+public class SystemClock {
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+}
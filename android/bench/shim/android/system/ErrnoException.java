@@ -0,0 +1,8 @@
+package android.system;
+
+// Stands in for the Android class when a bench runs on a plain JVM.
+public class ErrnoException extends Exception {
+    public ErrnoException(String functionName, Throwable cause) {
+        super(functionName, cause);
+    }
+}
@@ -0,0 +1,6 @@
+package android.system;
+
+// Stands in for the Android class when a bench runs on a plain JVM.
+public class OsConstants {
+    public static final int O_RDONLY = 0;
+}
@@ -0,0 +1,18 @@
+package android.util;
+
+// Stands in for the Android class when a bench runs on a plain JVM.
+public class Log {
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+}
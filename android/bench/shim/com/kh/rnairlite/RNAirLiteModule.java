@@ -0,0 +1,6 @@
+package com.kh.rnairlite;
+
+// Stands in for the React module when a bench runs on a plain JVM, which only needs its log tag.
+public class RNAirLiteModule {
+    public static final String Tag = "☁RNAirLite☁";
+}
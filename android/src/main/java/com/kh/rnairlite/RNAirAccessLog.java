@@ -0,0 +1,276 @@
+package com.kh.rnairlite;
+
+import android.os.Build;
+import android.os.FileObserver;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Files of a generation read in the first seconds after it is launched, which are prefetched
+ * into the page cache the next time it, or a newer generation, is activated.
+ *
+ * access.log in a generation lists paths relative to its data folder after a version line, in the
+ * order they are first read. Reads are watched by inotify, which prefetching never triggers since
+ * it only advises the kernel or maps files rather than reading them.
+ */
+public class RNAirAccessLog {
+    private static final String LogVersion = "1";
+    private static final long RecordWindowMs = 10000;
+    private static final int MaxFiles = 512;
+    private static final int PrefetchThreads = 4;
+    private static final long IdleThreadMs = 30000;
+
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private @Nullable Recording mRecording;
+
+    private class Recording implements Runnable {
+        final File mLogFile;
+        final List<FileObserver> mObservers = new ArrayList<>();
+        final Set<String> mPaths = new LinkedHashSet<>();
+
+        Recording(File logFile) {
+            mLogFile = logFile;
+        }
+
+        synchronized void add(String path) {
+            if (mPaths.size() < MaxFiles) mPaths.add(path);
+        }
+
+        synchronized List<String> getPaths() {
+            return new ArrayList<>(mPaths);
+        }
+
+        @Override
+        public void run() {
+            finish(this);
+        }
+    }
+
+    public RNAirAccessLog() {
+        mExecutor = new ScheduledThreadPoolExecutor(PrefetchThreads);
+        mExecutor.setKeepAliveTime(IdleThreadMs, TimeUnit.MILLISECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Records files under the folder read in a few seconds from now, which replace the log if any
+     * is read. A recording in progress is dropped, since its folder may have been switched.
+     */
+    public synchronized void record(File root, File logFile) {
+        if (mRecording != null) stop(mRecording);
+
+        final Recording recording = new Recording(logFile);
+        for (File dir : collectDirs(root, new ArrayList<File>())) {
+            String relative = dir.getAbsolutePath().substring(root.getAbsolutePath().length());
+            if (relative.startsWith("/")) relative = relative.substring(1);
+            final String prefix = relative.isEmpty() ? "" : relative + "/";
+            // Observers must be referenced, or they stop watching once collected.
+            FileObserver observer = new FileObserver(dir.getAbsolutePath(), FileObserver.ACCESS) {
+                @Override
+                public void onEvent(int event, @Nullable String path) {
+                    if (path == null || (event & FileObserver.ACCESS) == 0) return;
+                    if (prefix.isEmpty() && RNAirFolder.isPatchFile(path)) return;
+                    recording.add(prefix + path);
+                }
+            };
+            observer.startWatching();
+            recording.mObservers.add(observer);
+        }
+
+        mRecording = recording;
+        mExecutor.schedule(recording, RecordWindowMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void finish(Recording recording) {
+        if (mRecording != recording) return;
+        stop(recording);
+        List<String> paths = recording.getPaths();
+        if (paths.isEmpty()) return;
+        String result = write(recording.mLogFile, paths);
+        if (result != null) {
+            Log.w(RNAirLiteModule.Tag, "Fail to write " + recording.mLogFile + ": " + result);
+            return;
+        }
+
+        Log.d(RNAirLiteModule.Tag, paths.size() + " files read at launch are recorded in " +
+                recording.mLogFile.getAbsolutePath());
+    }
+
+    private void stop(Recording recording) {
+        mRecording = null;
+        for (FileObserver observer : recording.mObservers) {
+            observer.stopWatching();
+        }
+    }
+
+    /**
+     * Prefetches the bundle and files listed in the log, or in the fallback log if the former
+     * doesn't exist, into the page cache in background. Files missing in the folder are skipped.
+     */
+    public void prefetch(final File root, final File bundleFile, final File logFile,
+                         final @Nullable File fallbackLogFile) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<String> paths = load(logFile);
+                if (paths.isEmpty() && fallbackLogFile != null) paths = load(fallbackLogFile);
+
+                List<File> files = new ArrayList<>();
+                files.add(bundleFile);
+                for (String path : paths) {
+                    File file = new File(root, path);
+                    if (!file.equals(bundleFile)) files.add(file);
+                }
+
+                prefetch(files);
+            }
+        });
+    }
+
+    private void prefetch(List<File> files) {
+        final long startedAt = SystemClock.elapsedRealtime();
+        final AtomicInteger remaining = new AtomicInteger(files.size());
+        final AtomicLong bytes = new AtomicLong();
+        for (final File file : files) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    bytes.addAndGet(touch(file));
+                    if (remaining.decrementAndGet() > 0) return;
+                    Log.d(RNAirLiteModule.Tag, "Prefetched " + bytes.get() + " bytes in " +
+                            (SystemClock.elapsedRealtime() - startedAt) + "ms");
+                }
+            });
+        }
+    }
+
+    // Returns the length of the file prefetched, or 0 if it fails.
+    private static long touch(File file) {
+        if (!file.isFile()) return 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                FileDescriptor fd = Os.open(file.getAbsolutePath(), OsConstants.O_RDONLY, 0);
+                try {
+                    Os.posix_fadvise(fd, 0, 0, OsConstants.POSIX_FADV_WILLNEED);
+                } finally {
+                    Os.close(fd);
+                }
+
+                return file.length();
+            } catch (ErrnoException e) {
+                e.printStackTrace();
+                return 0;
+            }
+        }
+
+        // Pages faulted in by mapping don't count as reads of inotify either.
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            long length = raf.length();
+            if (length > 0) raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length).load();
+            return length;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            try {
+                if (raf != null) raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static List<File> collectDirs(File folder, List<File> dirs) {
+        dirs.add(folder);
+        File[] children = folder.listFiles();
+        if (children == null) return dirs;
+        for (File child : children) {
+            if (child.isDirectory()) collectDirs(child, dirs);
+        }
+
+        return dirs;
+    }
+
+    private static List<String> load(File src) {
+        List<String> paths = new ArrayList<>();
+        if (!src.exists()) return paths;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(src), "UTF-8"));
+            String line = reader.readLine();
+            if (!LogVersion.equals(line)) {
+                Log.w(RNAirLiteModule.Tag, "Unsupported access log version " + line);
+                return paths;
+            }
+
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) paths.add(line);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (reader != null) reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return paths;
+    }
+
+    private static String write(File dst, List<String> paths) {
+        File tmp = new File(dst.getAbsolutePath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            writer.write(LogVersion);
+            writer.write('\n');
+            for (String path : paths) {
+                writer.write(path);
+                writer.write('\n');
+            }
+
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(dst)) return "Fail to rename " + tmp.getAbsolutePath();
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return e.toString();
+        } finally {
+            try {
+                if (writer != null) writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
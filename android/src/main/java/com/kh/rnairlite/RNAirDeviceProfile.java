@@ -0,0 +1,267 @@
+package com.kh.rnairlite;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/**
+ * Capabilities of the device, i.e. cores, RAM and throughputs of storage, hashing and
+ * decompression, and parameters of the update pipeline tuned by them.
+ *
+ * Storage and hashing are measured once and kept until the system is updated. Until then, or if
+ * measuring fails, parameters are tuned by cores and RAM only. A failure is kept as well, so a
+ * device which fails to be measured isn't probed again on every update.
+ */
+public class RNAirDeviceProfile {
+    public enum MemoryClass {
+        // Below 2GB or a low RAM device.
+        Low,
+        // Below 4GB.
+        Mid,
+        High,
+    }
+
+    public enum Verification {
+        // The patch is hashed again right before it is installed, which catches corruptions on
+        // storage between the download and the install.
+        AtInstall,
+        // The patch is hashed while it is downloaded, where hashing overlaps waits for network,
+        // and installs skip reading it again.
+        WhileDownloading,
+    }
+
+    private static final String PrefsName = "rnairlite_profile";
+    private static final String KeyFingerprint = "fingerprint";
+    private static final String KeyStorageThroughput = "storage";
+    private static final String KeyHashThroughput = "hash";
+
+    private static final long MB = 1024 * 1024;
+    private static final int ProbeSize = (int) (4 * MB);
+    private static final int ProbeChunkSize = 64 * 1024;
+    private static final String ProbeName = "profile.probe";
+
+    // All throughputs are in bytes per millisecond.
+    private static final float SlowStorageThroughput = 20000;
+    private static final float SlowHashThroughput = 50000;
+
+    private final int mCores;
+    private final long mTotalMemory;
+    private final MemoryClass mMemoryClass;
+    private final float mStorageThroughput;
+    private final float mHashThroughput;
+    private final float mDecompressThroughput;
+    private final boolean mProbed;
+
+    private RNAirDeviceProfile(int cores, long totalMemory, MemoryClass memoryClass,
+                               float storageThroughput, float hashThroughput,
+                               float decompressThroughput, boolean probed) {
+        mCores = cores;
+        mTotalMemory = totalMemory;
+        mMemoryClass = memoryClass;
+        mStorageThroughput = storageThroughput;
+        mHashThroughput = hashThroughput;
+        mDecompressThroughput = decompressThroughput;
+        mProbed = probed;
+    }
+
+    /**
+     * Returns the profile stored, or one without throughputs of storage and hashing if the device
+     * hasn't been measured yet. It never touches storage, so it is safe on the main thread.
+     */
+    public static RNAirDeviceProfile load(Context context, RNAirUpdatePlanner planner) {
+        SharedPreferences prefs = context.getSharedPreferences(PrefsName, Context.MODE_PRIVATE);
+        boolean measured = getFingerprint().equals(prefs.getString(KeyFingerprint, null));
+        return create(context, planner,
+                measured ? prefs.getFloat(KeyStorageThroughput, -1) : -1,
+                measured ? prefs.getFloat(KeyHashThroughput, -1) : -1, measured);
+    }
+
+    // Measures the device once and stores the result. It takes a few hundreds of milliseconds.
+    public static RNAirDeviceProfile measure(Context context, RNAirUpdatePlanner planner,
+                                             File probeFolder) {
+        SharedPreferences prefs = context.getSharedPreferences(PrefsName, Context.MODE_PRIVATE);
+        if (getFingerprint().equals(prefs.getString(KeyFingerprint, null))) {
+            return load(context, planner);
+        }
+
+        byte[] probe = new byte[ProbeSize];
+        new Random().nextBytes(probe);
+        float storage = measureStorage(new File(probeFolder, ProbeName), probe);
+        float hash = measureHash(probe);
+        // Failures are stored as -1, which tunes by cores and RAM until the system is updated.
+        prefs.edit()
+                .putString(KeyFingerprint, getFingerprint())
+                .putFloat(KeyStorageThroughput, storage)
+                .putFloat(KeyHashThroughput, hash)
+                .apply();
+
+        RNAirDeviceProfile profile = create(context, planner, storage, hash, true);
+        Log.i(RNAirLiteModule.Tag, "Device profile: " + profile);
+        return profile;
+    }
+
+    private static RNAirDeviceProfile create(Context context, RNAirUpdatePlanner planner,
+                                             float storage, float hash, boolean probed) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        long totalMemory = memoryInfo.totalMem;
+        boolean lowRam = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT &&
+                activityManager.isLowRamDevice();
+
+        MemoryClass memoryClass;
+        if (lowRam || totalMemory < 2048 * MB) {
+            memoryClass = MemoryClass.Low;
+        } else if (totalMemory < 4096 * MB) {
+            memoryClass = MemoryClass.Mid;
+        } else {
+            memoryClass = MemoryClass.High;
+        }
+
+        return new RNAirDeviceProfile(Runtime.getRuntime().availableProcessors(), totalMemory,
+                memoryClass, storage, hash, planner.getDecompressThroughput(), probed);
+    }
+
+    // Profiles are measured again after the system is updated, which may change storage drivers.
+    private static String getFingerprint() {
+        return Build.FINGERPRINT + " " + Runtime.getRuntime().availableProcessors();
+    }
+
+    private static float measureStorage(File file, byte[] probe) {
+        FileOutputStream out = null;
+        try {
+            long startedAt = SystemClock.elapsedRealtime();
+            out = new FileOutputStream(file);
+            for (int offset = 0; offset < probe.length; offset += ProbeChunkSize) {
+                out.write(probe, offset, Math.min(ProbeChunkSize, probe.length - offset));
+            }
+
+            out.getFD().sync();
+            return (float) probe.length / Math.max(SystemClock.elapsedRealtime() - startedAt, 1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            file.delete();
+        }
+    }
+
+    private static float measureHash(byte[] probe) {
+        try {
+            MessageDigest md = RNAirIntegrityIndex.createDigest();
+            long startedAt = SystemClock.elapsedRealtime();
+            md.update(probe);
+            md.digest();
+            return (float) probe.length / Math.max(SystemClock.elapsedRealtime() - startedAt, 1);
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    public int getCores() {
+        return mCores;
+    }
+
+    public long getTotalMemory() {
+        return mTotalMemory;
+    }
+
+    public MemoryClass getMemoryClass() {
+        return mMemoryClass;
+    }
+
+    // Returns -1 if it is not measured yet.
+    public float getStorageThroughput() {
+        return mStorageThroughput;
+    }
+
+    // Returns -1 if it is not measured yet.
+    public float getHashThroughput() {
+        return mHashThroughput;
+    }
+
+    // Measured by real installs, or the default of RNAirUpdatePlanner before any.
+    public float getDecompressThroughput() {
+        return mDecompressThroughput;
+    }
+
+    public boolean isMeasured() {
+        return mStorageThroughput > 0 && mHashThroughput > 0;
+    }
+
+    // Whether the device has been measured for the current system, even if measuring failed.
+    public boolean isProbed() {
+        return mProbed;
+    }
+
+    // Size of buffers to copy downloads and extracted files through.
+    public int getChunkSize() {
+        switch (mMemoryClass) {
+            case Low:
+                return 16 * 1024;
+            case Mid:
+                return 64 * 1024;
+            default:
+                return 128 * 1024;
+        }
+    }
+
+    // The parallel decoder holds outputs of all blocks and the joined one at the same time.
+    public int getDecodeThreads() {
+        if (mMemoryClass == MemoryClass.Low) return 1;
+        return Math.min(mCores, 4);
+    }
+
+    // Threads syncing files in parallel, which keep the queue of flash busy.
+    public int getSyncThreads() {
+        if (mStorageThroughput > 0 && mStorageThroughput < SlowStorageThroughput) return 2;
+        return mMemoryClass == MemoryClass.High ? 8 : 4;
+    }
+
+    public Verification getVerification() {
+        if (mHashThroughput > 0 && mHashThroughput < SlowHashThroughput) {
+            return Verification.WhileDownloading;
+        }
+
+        return Verification.AtInstall;
+    }
+
+    // Lazy assets fetched at the same time.
+    public int getDownloadConcurrency() {
+        switch (mMemoryClass) {
+            case Low:
+                return 1;
+            case Mid:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cores=%d ram=%dMB (%s) storage=%.0f hash=%.0f bz2=%.0f " +
+                        "chunk=%d decodeThreads=%d syncThreads=%d verification=%s downloads=%d",
+                mCores, mTotalMemory / MB, mMemoryClass, mStorageThroughput, mHashThroughput,
+                mDecompressThroughput, getChunkSize(), getDecodeThreads(), getSyncThreads(),
+                getVerification(), getDownloadConcurrency());
+    }
+}
@@ -0,0 +1,138 @@
+package com.kh.rnairlite;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Caps the rate patches are downloaded at by a token bucket, and yields the network to requests
+ * of the APP. The rate is halved whenever latencies of requests reported by the APP get much
+ * higher than usual, and recovers step by step while they stay normal.
+ *
+ * While the APP is busy, nothing is read, so the receive window of the connection closes and the
+ * server stops sending until the APP is idle again. Pauses of a download add up to MaxPauseMs at
+ * most, since a connection kept stalled longer may be dropped by the server. After that, it goes
+ * on at the throttled rate.
+ */
+public class RNAirDownloadThrottle {
+    private static final long MinBytesPerSecond = 16 * 1024;
+    // The bucket holds tokens of this long at most, which bounds bursts after idle periods.
+    private static final long BurstMs = 250;
+    private static final long PollIntervalMs = 200;
+    private static final long MaxPauseMs = 30000;
+    private static final long RecoveryIntervalMs = 2000;
+    private static final int RecoverySteps = 8;
+    private static final float LatencySmoothing = 0.2f;
+    private static final float SlowLatencyFactor = 2;
+
+    private final long mMaxBytesPerSecond;
+    private long mBytesPerSecond;
+    private volatile boolean mBusy = false;
+    private float mBaselineLatency = -1;
+    private long mRateChangedAt = 0;
+    private double mTokens = 0;
+    private long mRefilledAt = -1;
+    private long mPausedMs = 0;
+
+    public RNAirDownloadThrottle(long maxBytesPerSecond) {
+        mMaxBytesPerSecond = Math.max(maxBytesPerSecond, MinBytesPerSecond);
+        mBytesPerSecond = mMaxBytesPerSecond;
+    }
+
+    // Pauses downloads while requests of the APP are in flight, or the UI is busy.
+    public void setBusy(boolean busy) {
+        mBusy = busy;
+    }
+
+    /**
+     * Reports the latency of a request of the APP, e.g. from an interceptor of its HTTP client.
+     * Downloads slow down if it is much higher than latencies reported before.
+     */
+    public synchronized void reportLatency(long ms) {
+        if (mBaselineLatency < 0) {
+            mBaselineLatency = ms;
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (ms > mBaselineLatency * SlowLatencyFactor) {
+            long slowed = Math.max(mBytesPerSecond / 2, MinBytesPerSecond);
+            if (slowed != mBytesPerSecond) {
+                Log.d(RNAirLiteModule.Tag, "Requests of the APP take " + ms + "ms rather than " +
+                        (int) mBaselineLatency + "ms. Slow downloads down to " + slowed +
+                        " bytes/s");
+            }
+
+            mBytesPerSecond = slowed;
+            mRateChangedAt = now;
+        } else {
+            recover(now);
+        }
+
+        // Slow latencies are taken in too, so a network which gets slower for good is followed.
+        mBaselineLatency += LatencySmoothing * (ms - mBaselineLatency);
+    }
+
+    // Called by the download thread before a download starts, which gets the whole pause budget.
+    public void begin() {
+        mPausedMs = 0;
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    // The most bytes to read at once, so a single read never exceeds the bucket.
+    public synchronized int getBurstBytes() {
+        return (int) Math.max(mBytesPerSecond * BurstMs / 1000, 1024);
+    }
+
+    // Called by the download thread after each read.
+    public void onBytesRead(int bytes) throws InterruptedException {
+        long waitMs;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            recover(now);
+            double capacity = mBytesPerSecond * BurstMs / 1000.0;
+            if (mRefilledAt < 0) mRefilledAt = now;
+            mTokens = Math.min(capacity,
+                    mTokens + (now - mRefilledAt) * mBytesPerSecond / 1000.0);
+            mRefilledAt = now;
+            mTokens -= bytes;
+            waitMs = mTokens < 0 ? (long) (-mTokens * 1000 / mBytesPerSecond) : 0;
+        }
+
+        if (waitMs > 0) Thread.sleep(waitMs);
+        waitIfBusy();
+    }
+
+    private void waitIfBusy() throws InterruptedException {
+        boolean logged = false;
+        while (mBusy) {
+            if (mPausedMs >= MaxPauseMs) {
+                if (logged) {
+                    Log.d(RNAirLiteModule.Tag, "Download resumed after pausing for " +
+                            mPausedMs + "ms");
+                }
+
+                return;
+            }
+
+            if (!logged) {
+                Log.d(RNAirLiteModule.Tag, "Download paused since the APP is busy");
+                logged = true;
+            }
+
+            Thread.sleep(PollIntervalMs);
+            mPausedMs += PollIntervalMs;
+        }
+    }
+
+    // Raises the rate by a step for each interval without slow requests.
+    private void recover(long now) {
+        if (mBytesPerSecond >= mMaxBytesPerSecond) return;
+        if (now - mRateChangedAt < RecoveryIntervalMs) return;
+        mBytesPerSecond = Math.min(mBytesPerSecond + mMaxBytesPerSecond / RecoverySteps,
+                mMaxBytesPerSecond);
+        mRateChangedAt = now;
+    }
+}
@@ -0,0 +1,199 @@
+package com.kh.rnairlite;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Makes a generation written durable before it is switched to, so a power loss never leaves a
+ * generation which passes checks but holds zero-length files.
+ */
+public class RNAirDurability {
+    public enum Mode {
+        // Nothing is synced. Fastest, but a power loss could corrupt the generation installed.
+        None,
+        // Files are synced in parallel once all are written, then directories are synced once
+        // before the switch.
+        Batched,
+        // Each file is synced right after written. Files written otherwise, then directories,
+        // are synced one by one before the switch.
+        Strict,
+    }
+
+    private static final int DefaultSyncThreads = 4;
+
+    private final Mode mMode;
+    private final int mSyncThreads;
+    // Files synced by onFileWritten, which syncTree doesn't sync again.
+    private final Set<String> mSynced = Collections.synchronizedSet(new HashSet<String>());
+
+    public RNAirDurability(Mode mode) {
+        this(mode, DefaultSyncThreads);
+    }
+
+    public RNAirDurability(Mode mode, int syncThreads) {
+        mMode = mode;
+        mSyncThreads = Math.max(syncThreads, 1);
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    // Called before closing each file written while installing.
+    public void onFileWritten(FileOutputStream out, File file) throws IOException {
+        if (mMode != Mode.Strict) return;
+        out.getFD().sync();
+        mSynced.add(file.getAbsolutePath());
+    }
+
+    /**
+     * Syncs all files and directories under the folder, and the folder itself. Files are synced
+     * before directories holding them.
+     */
+    public String syncTree(File folder) throws InterruptedException {
+        if (mMode == Mode.None) return null;
+
+        long startedAt = SystemClock.elapsedRealtime();
+        List<File> files = new ArrayList<>();
+        List<File> dirs = new ArrayList<>();
+        collect(folder, files, dirs);
+        String result;
+        if (mMode == Mode.Batched) {
+            result = syncInParallel(files, mSyncThreads);
+        } else {
+            List<File> unsynced = new ArrayList<>();
+            for (File file : files) {
+                if (!mSynced.contains(file.getAbsolutePath())) unsynced.add(file);
+            }
+
+            mSynced.clear();
+            result = syncInOrder(unsynced);
+        }
+
+        if (result != null) return result;
+
+        // Deepest directories go first since dirs are collected in pre-order.
+        for (int i = dirs.size() - 1; i >= 0; --i) {
+            result = syncDirectory(dirs.get(i));
+            if (result != null) return result;
+        }
+
+        Log.d(RNAirLiteModule.Tag, "Synced " + files.size() + " files and " + dirs.size() +
+                " directories in " + mMode + " mode in " +
+                (SystemClock.elapsedRealtime() - startedAt) + "ms");
+        return null;
+    }
+
+    // Makes renames of entries in the directory durable.
+    public String syncDirectory(File dir) {
+        if (mMode == Mode.None) return null;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            // Directories couldn't be opened on older systems. Their entries are left to the
+            // journal of the file system.
+            return null;
+        }
+
+        try {
+            FileDescriptor fd = Os.open(dir.getAbsolutePath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+
+            return null;
+        } catch (ErrnoException e) {
+            e.printStackTrace();
+            return e.toString();
+        }
+    }
+
+    private static void collect(File folder, List<File> files, List<File> dirs) {
+        dirs.add(folder);
+        File[] children = folder.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collect(child, files, dirs);
+            } else {
+                files.add(child);
+            }
+        }
+    }
+
+    private static String syncInOrder(List<File> files) {
+        for (File file : files) {
+            String result = sync(file);
+            if (result != null) return result;
+        }
+
+        return null;
+    }
+
+    // fsync blocks on the flash device rather than CPU, so a few threads keep its queue busy.
+    private static String syncInParallel(List<File> files, int threads)
+            throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (final File file : files) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return sync(file);
+                    }
+                }));
+            }
+
+            for (Future<String> result : results) {
+                String error = result.get();
+                if (error != null) return error;
+            }
+
+            return null;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return e.toString();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String sync(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.getFD().sync();
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return e.toString();
+        } finally {
+            try {
+                if (raf != null) raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -1,9 +1,17 @@
 package com.kh.rnairlite;
 
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
 import android.os.AsyncTask;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Created by KH on 05/10/2016.
@@ -33,6 +41,97 @@ public class RNAirFS {
         src.renameTo(dst);
     }
 
+    /**
+     * Reads an asset of the APK into a direct buffer. Assets stored uncompressed are read through
+     * their file descriptor straight into the buffer, while compressed ones are inflated into a
+     * buffer of their length through a chunk.
+     */
+    public static ByteBuffer readAsset(AssetManager assets, String name, int chunkSize)
+            throws IOException {
+        AssetFileDescriptor fd = null;
+        try {
+            fd = assets.openFd(name);
+        } catch (FileNotFoundException e) {
+            // Thrown for compressed assets, which have no range in the APK to read.
+        }
+
+        if (fd != null && fd.getLength() != AssetFileDescriptor.UNKNOWN_LENGTH) {
+            FileInputStream in = fd.createInputStream();
+            try {
+                FileChannel channel = in.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocateDirect((int) fd.getLength());
+                long start = fd.getStartOffset();
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, start + buffer.position()) == -1) {
+                        throw new IOException("Asset " + name + " is truncated while reading");
+                    }
+                }
+
+                buffer.rewind();
+                return buffer;
+            } finally {
+                in.close();
+                fd.close();
+            }
+        }
+
+        if (fd != null) fd.close();
+        InputStream in = assets.open(name);
+        try {
+            return readFully(in, chunkSize);
+        } finally {
+            in.close();
+        }
+    }
+
+    // Native methods only accept direct buffers. available() of assets is their whole length, so
+    // the buffer is rarely grown.
+    private static ByteBuffer readFully(InputStream in, int chunkSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(in.available(), chunkSize));
+        byte[] chunk = new byte[chunkSize];
+        int count;
+        while ((count = in.read(chunk)) != -1) {
+            if (count > buffer.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(
+                        Math.max(buffer.capacity() * 2, buffer.position() + count));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+
+            buffer.put(chunk, 0, count);
+        }
+
+        if (buffer.hasRemaining()) {
+            // Buffers passed to native methods must hold exactly their bytes.
+            ByteBuffer exact = ByteBuffer.allocateDirect(buffer.position());
+            buffer.flip();
+            exact.put(buffer);
+            buffer = exact;
+        }
+
+        buffer.rewind();
+        return buffer;
+    }
+
+    public static ByteBuffer readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) channel.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new IOException(file.getAbsolutePath() + " is truncated while reading");
+                }
+            }
+
+            buffer.rewind();
+            return buffer;
+        } finally {
+            in.close();
+        }
+    }
+
     private static void deleteRecursive(File fileOrDirectory) {
 
         if (fileOrDirectory.isDirectory()) {
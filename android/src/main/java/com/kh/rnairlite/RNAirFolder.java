@@ -4,10 +4,12 @@ import android.app.Application;
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Created by KH on 05/10/2016.
@@ -16,14 +18,30 @@ public class RNAirFolder {
     private static final String StablePatchPath= "stable_patch";
     private static final String NewestPatchPath = "newest_patch";
     private static final String TempPatchPath = "tmp_patch";
+    private static final String StagingPatchPath = "download_patch";
+    private static final String LockPath = "patch_lock";
+    private static final String AssetCachePath = "asset_cache";
     private static final String PatchName = "patch.data";
     private static final String PatchMetaName = "patch.meta";
     private static final String AssetsName = "assets.tar";
+    private static final String AssetsSkeletonName = "assets.skeleton";
+    private static final String ApkBaseMarkerName = "apk.base";
+    private static final String FullBaseMarkerName = "full.base";
+    private static final String IntegrityIndexName = "integrity.index";
+    private static final String PendingMarkerName = "install.pending";
+    private static final String CompleteMarkerName = "patch.complete";
+    private static final String VerifiedMarkerName = "patch.verified";
+    private static final String LazyManifestName = "lazy.manifest";
+    private static final String AccessLogName = "access.log";
+    private static final Set<String> PatchFileNames = new HashSet<>(Arrays.asList(PatchName,
+            PatchMetaName, AssetsName, AssetsSkeletonName, ApkBaseMarkerName, FullBaseMarkerName,
+            IntegrityIndexName, PendingMarkerName, CompleteMarkerName, VerifiedMarkerName,
+            LazyManifestName, AccessLogName));
 
     private final Application mApplication;
     private final String mJSMainModuleName;
     private String mLastUpdatedTs = "0";
-    private @Nullable File mPatchDir;
+    private int mAppVersionCode = 0;
 
     public RNAirFolder(Application app, String jsMainModuleName) {
         mApplication = app;
@@ -36,18 +54,21 @@ public class RNAirFolder {
             info = mApplication.getPackageManager().getPackageInfo(mApplication.getPackageName(),
                     0);
             mLastUpdatedTs = "" + info.lastUpdateTime;
+            mAppVersionCode = info.versionCode;
         } catch (PackageManager.NameNotFoundException e) {
             e.printStackTrace();
             Log.d(RNAirLiteModule.Tag, "Fail to load last update time of the APP.");
         }
     }
 
-    public void createTempWritingFolder() {
-        File tempDir = getTempPatchFolder();
-        RNAirFS.deletePatch(tempDir);
-        tempDir = getTempPatchFolder();
-        mPatchDir = new File(tempDir, mLastUpdatedTs);
-        mPatchDir.mkdir();
+    // Patches are downloaded here, then moved to the temporary folder under the update lock.
+    public void createStagingWritingFolder() {
+        RNAirFS.deletePatch(getStagingPatchFolder());
+        new File(getStagingPatchFolder(), mLastUpdatedTs).mkdir();
+    }
+
+    public int getAppVersionCode() {
+        return mAppVersionCode;
     }
 
     public File getNewestPatchFolder() {
@@ -62,6 +83,23 @@ public class RNAirFolder {
         return mApplication.getDir(TempPatchPath, Context.MODE_PRIVATE);
     }
 
+    public File getStagingPatchFolder() {
+        return mApplication.getDir(StagingPatchPath, Context.MODE_PRIVATE);
+    }
+
+    public File getLockFolder() {
+        return mApplication.getDir(LockPath, Context.MODE_PRIVATE);
+    }
+
+    public File getAssetCacheFolder() {
+        return mApplication.getDir(AssetCachePath, Context.MODE_PRIVATE);
+    }
+
+    // Whether a file in the data folder of a generation is kept by RNAirLite rather than extracted.
+    public static boolean isPatchFile(String name) {
+        return PatchFileNames.contains(name);
+    }
+
     public File getAssetsName(String bundleFolder) {
         return new File(bundleFolder, AssetsName);
     }
@@ -78,6 +116,10 @@ public class RNAirFolder {
         return new PatchScheme(TempPatchPath);
     }
 
+    public PatchScheme getStagingPatchSchema() {
+        return new PatchScheme(StagingPatchPath);
+    }
+
     public class PatchScheme {
         private final String mType;
         private File mDataFolder;
@@ -110,5 +152,50 @@ public class RNAirFolder {
         public File getAssetsFile() {
             return new File(mDataFolder, AssetsName);
         }
+
+        public File getAssetsSkeletonFile() {
+            return new File(mDataFolder, AssetsSkeletonName);
+        }
+
+        public File getIntegrityIndexFile() {
+            return new File(mDataFolder, IntegrityIndexName);
+        }
+
+        // Lists assets not in assets.tar, which are fetched on demand.
+        public File getLazyManifestFile() {
+            return new File(mDataFolder, LazyManifestName);
+        }
+
+        // Lists files read at the last launch of this generation.
+        public File getAccessLogFile() {
+            return new File(mDataFolder, AccessLogName);
+        }
+
+        // Exists only if the patch in this folder has been downloaded completely.
+        public File getCompleteMarkerFile() {
+            return new File(mDataFolder, CompleteMarkerName);
+        }
+
+        // Exists only if the checksum of the patch in this folder has been verified while it was
+        // downloaded.
+        public File getVerifiedMarkerFile() {
+            return new File(mDataFolder, VerifiedMarkerName);
+        }
+
+        // Exists only if the patch in this folder is installed but not activated yet.
+        public File getPendingMarkerFile() {
+            return new File(mDataFolder, PendingMarkerName);
+        }
+
+        // Exists only if the patch in this folder is a delta against the bundle embedded in APK.
+        public File getApkBaseMarkerFile() {
+            return new File(mDataFolder, ApkBaseMarkerName);
+        }
+
+        // Exists only if the patch in this folder is a whole base package downloaded even though a
+        // local patch exists.
+        public File getFullBaseMarkerFile() {
+            return new File(mDataFolder, FullBaseMarkerName);
+        }
     }
 }
@@ -0,0 +1,98 @@
+package com.kh.rnairlite;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Slows an install down to a rate of bytes written per second, and pauses it while the UI is
+ * busy or the system is short of memory.
+ *
+ * A paused install still holds the lock shared by processes and keeps other phases out, so pauses
+ * of an install add up to MaxPauseMs at most. After that, it goes on at the throttled rate.
+ */
+public class RNAirInstallThrottle {
+    private static final long PollIntervalMs = 500;
+    private static final long DefaultBytesPerSecond = 2 * 1024 * 1024;
+    private static final long MaxPauseMs = 30000;
+
+    private final ActivityManager mActivityManager;
+    private final long mBytesPerSecond;
+    private volatile boolean mBusy = false;
+    private volatile boolean mLowMemory = false;
+    private long mWindowStartedAt = 0;
+    private long mWindowBytes = 0;
+    private long mPausedMs = 0;
+
+    public RNAirInstallThrottle(Context context) {
+        this(context, DefaultBytesPerSecond);
+    }
+
+    public RNAirInstallThrottle(Context context, long bytesPerSecond) {
+        mActivityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    public void setBusy(boolean busy) {
+        mBusy = busy;
+    }
+
+    public void onLowMemory() {
+        mLowMemory = true;
+    }
+
+    // Called by the install thread before an install starts, which gets the whole pause budget.
+    public void begin() {
+        mPausedMs = 0;
+    }
+
+    // Called by the install thread after each chunk is written.
+    public void onBytesWritten(long bytes) throws InterruptedException {
+        long now = SystemClock.elapsedRealtime();
+        if (now - mWindowStartedAt >= 1000) {
+            mWindowStartedAt = now;
+            mWindowBytes = 0;
+        }
+
+        mWindowBytes += bytes;
+        if (mWindowBytes >= mBytesPerSecond) {
+            Thread.sleep(Math.max(0, 1000 - (now - mWindowStartedAt)));
+            mWindowStartedAt = SystemClock.elapsedRealtime();
+            mWindowBytes = 0;
+        }
+
+        waitIfPaused();
+    }
+
+    public void waitIfPaused() throws InterruptedException {
+        boolean logged = false;
+        while (mBusy || isLowMemory()) {
+            if (mPausedMs >= MaxPauseMs) {
+                if (logged) {
+                    Log.d(RNAirLiteModule.Tag, "Install resumed after pausing for " +
+                            mPausedMs + "ms");
+                }
+
+                return;
+            }
+
+            if (!logged) {
+                Log.d(RNAirLiteModule.Tag, "Install paused since " +
+                        (mBusy ? "UI is busy" : "memory is low"));
+                logged = true;
+            }
+
+            Thread.sleep(PollIntervalMs);
+            mPausedMs += PollIntervalMs;
+        }
+    }
+
+    private boolean isLowMemory() {
+        if (!mLowMemory) return false;
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        mActivityManager.getMemoryInfo(memoryInfo);
+        mLowMemory = memoryInfo.lowMemory;
+        return mLowMemory;
+    }
+}
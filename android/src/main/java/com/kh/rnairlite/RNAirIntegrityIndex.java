@@ -0,0 +1,240 @@
+package com.kh.rnairlite;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fingerprints of all files extracted into a generation. Sizes and mtimes are checked on every
+ * boot, while a file is rehashed only if its mtime changed.
+ *
+ * Each line of the index is "size mtime sha256 path". The first line is the index version.
+ */
+public class RNAirIntegrityIndex {
+    private static final String IndexVersion = "1";
+    private static final String HashAlgorithm = "SHA-256";
+    private static final int ChunkSize = 10240;
+
+    private final File mRoot;
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    private static class Entry {
+        final String mPath;
+        long mSize;
+        long mModified;
+        final String mHash;
+
+        Entry(String path, long size, long modified, String hash) {
+            mPath = path;
+            mSize = size;
+            mModified = modified;
+            mHash = hash;
+        }
+    }
+
+    public RNAirIntegrityIndex(File root) {
+        mRoot = root;
+    }
+
+    public static MessageDigest createDigest() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(HashAlgorithm);
+    }
+
+    // Size and mtime are taken from the file system once all files are written.
+    public void add(String path, byte[] hash) {
+        mEntries.add(new Entry(path, 0, 0, toHex(hash)));
+    }
+
+    public String save(File dst) {
+        for (Entry entry : mEntries) {
+            File file = new File(mRoot, entry.mPath);
+            entry.mSize = file.length();
+            entry.mModified = file.lastModified();
+        }
+
+        return write(dst);
+    }
+
+    /**
+     * Returns null if all files match the index. A missing index is regarded as valid only if it
+     * is not required, i.e. the generation was installed by an earlier version which wrote none.
+     *
+     * New mtimes are written back only if the update lock is free, since another process holding
+     * it may be replacing the generation and its index at the same time.
+     */
+    public static String verify(File root, File indexFile, boolean required,
+                                RNAirProcessCoordinator coordinator) {
+        if (!indexFile.exists()) {
+            String error = "No integrity index found in " + root.getAbsolutePath();
+            Log.w(RNAirLiteModule.Tag, error);
+            return required ? error : null;
+        }
+
+        long indexModified = indexFile.lastModified();
+        RNAirIntegrityIndex index = new RNAirIntegrityIndex(root);
+        String result = index.load(indexFile);
+        if (result != null) return result;
+
+        boolean touched = false;
+        for (Entry entry : index.mEntries) {
+            File file = new File(root, entry.mPath);
+            if (!file.isFile() || file.length() != entry.mSize) {
+                String error = file.getAbsolutePath() + " is missing or truncated";
+                Log.e(RNAirLiteModule.Tag, error);
+                return error;
+            }
+
+            if (file.lastModified() == entry.mModified) continue;
+
+            Log.d(RNAirLiteModule.Tag, file.getAbsolutePath() + " is modified. Rehashing...");
+            try {
+                if (!entry.mHash.equals(toHex(hash(file)))) {
+                    String error = file.getAbsolutePath() + " is corrupted";
+                    Log.e(RNAirLiteModule.Tag, error);
+                    return error;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return e.toString();
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
+                return e.toString();
+            }
+
+            entry.mModified = file.lastModified();
+            touched = true;
+        }
+
+        // Remember new mtimes so the next boot won't rehash again.
+        if (touched) index.rewrite(indexFile, indexModified, coordinator);
+        return null;
+    }
+
+    private void rewrite(File indexFile, long indexModified, RNAirProcessCoordinator coordinator) {
+        RNAirProcessCoordinator.Lock lock = coordinator.tryLock();
+        if (lock == null) {
+            Log.d(RNAirLiteModule.Tag, "The update lock is busy. Keep the integrity index.");
+            return;
+        }
+
+        try {
+            // The generation verified has been replaced since the index was loaded.
+            if (indexFile.lastModified() != indexModified) return;
+            File tmp = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+            if (write(tmp) != null || !tmp.renameTo(indexFile)) {
+                Log.w(RNAirLiteModule.Tag, "Fail to update " + indexFile.getAbsolutePath());
+                tmp.delete();
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    private String load(File src) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(src), "UTF-8"));
+            String line = reader.readLine();
+            if (!IndexVersion.equals(line)) {
+                String error = "Unsupported integrity index version " + line;
+                Log.e(RNAirLiteModule.Tag, error);
+                return error;
+            }
+
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                String[] fields = line.split(" ", 4);
+                if (fields.length != 4) {
+                    String error = "Integrity index is corrupted at " + line;
+                    Log.e(RNAirLiteModule.Tag, error);
+                    return error;
+                }
+
+                mEntries.add(new Entry(fields[3], Long.parseLong(fields[0]),
+                        Long.parseLong(fields[1]), fields[2]));
+            }
+
+            return null;
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            return e.toString();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return e.toString();
+        } finally {
+            try {
+                if (reader != null) reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private String write(File dst) {
+        Writer out = null;
+        try {
+            out = new OutputStreamWriter(new FileOutputStream(dst), "UTF-8");
+            out.write(IndexVersion);
+            out.write('\n');
+            for (Entry entry : mEntries) {
+                out.write(entry.mSize + " " + entry.mModified + " " + entry.mHash + " " +
+                        entry.mPath + "\n");
+            }
+
+            out.flush();
+            return null;
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+            return e.toString();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return e.toString();
+        } finally {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    static byte[] hash(File file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest md = createDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] chunk = new byte[ChunkSize];
+            int count;
+            while ((count = in.read(chunk)) != -1) {
+                md.update(chunk, 0, count);
+            }
+
+            return md.digest();
+        } finally {
+            in.close();
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = digits[bytes[i] & 0x0F];
+        }
+
+        return new String(hex);
+    }
+}
@@ -0,0 +1,180 @@
+package com.kh.rnairlite;
+
+import android.support.annotation.Nullable;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Pure Java patch engine. bzip2 is decoded by commons-compress and bspatch is ported from
+ * libminibsdiff, so patches made by the CLI could be applied without the native library.
+ *
+ * Inputs are never copied onto the heap. The output of bspatch is allocated exactly once with the
+ * size recorded in the patch header. Like buffers of the native engine, outputs are direct ones of
+ * exactly their bytes, so either could be fed to the other.
+ */
+public class RNAirJavaPatchEngine implements RNAirPatchEngine {
+    private static final byte[] BsdiffMagic = {'M', 'B', 'S', 'D', 'I', 'F', '4', '3'};
+    private static final int BsdiffHeaderLength = 32;
+    private static final int ControlLength = 24;
+    private static final int ChunkSize = 10240;
+    private static final int MinDecompressedSize = 64 * 1024;
+
+    @Override
+    public @Nullable ByteBuffer decompress(ByteBuffer compressed) {
+        try {
+            InputStream in = new BZip2CompressorInputStream(
+                    new ByteBufferInputStream(compressed.duplicate()), false);
+            byte[] out = new byte[Math.max(compressed.remaining() * 4, MinDecompressedSize)];
+            int size = 0;
+            int count;
+            while ((count = in.read(out, size, out.length - size)) != -1) {
+                size += count;
+                if (size == out.length) {
+                    byte[] larger = new byte[out.length * 2];
+                    System.arraycopy(out, 0, larger, 0, size);
+                    out = larger;
+                }
+            }
+
+            in.close();
+            ByteBuffer result = ByteBuffer.allocateDirect(size);
+            result.put(out, 0, size);
+            result.flip();
+            return result;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public @Nullable ByteBuffer patch(ByteBuffer raw, ByteBuffer patch) {
+        ByteBuffer p = patch.duplicate();
+        int base = p.position();
+        int end = p.limit();
+        if (end - base < BsdiffHeaderLength) return null;
+        for (int i = 0; i < BsdiffMagic.length; ++i) {
+            if (p.get(base + i) != BsdiffMagic[i]) return null;
+        }
+
+        long ctrlLength = offtin(p, base + 8);
+        long diffLength = offtin(p, base + 16);
+        long newSize = offtin(p, base + 24);
+        if (ctrlLength < 0 || diffLength < 0 || newSize < 0 || newSize > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        if (BsdiffHeaderLength + ctrlLength + diffLength > end - base) return null;
+
+        int ctrlPos = base + BsdiffHeaderLength;
+        int diffStart = ctrlPos + (int) ctrlLength;
+        int diffPos = diffStart;
+        int extraStart = diffStart + (int) diffLength;
+        int extraPos = extraStart;
+
+        ByteBuffer old = raw.duplicate();
+        int oldBase = old.position();
+        long oldSize = old.remaining();
+        byte[] oldChunk = new byte[ChunkSize];
+        byte[] newChunk = new byte[ChunkSize];
+
+        ByteBuffer out = ByteBuffer.allocateDirect((int) newSize);
+        long oldPos = 0;
+        int newPos = 0;
+        while (newPos < newSize) {
+            if (ctrlPos + ControlLength > diffStart) return null;
+            long add = offtin(p, ctrlPos);
+            long copy = offtin(p, ctrlPos + 8);
+            long seek = offtin(p, ctrlPos + 16);
+            ctrlPos += ControlLength;
+
+            if (add < 0 || newPos + add > newSize || diffPos + add > extraStart) return null;
+            out.position(newPos);
+            out.put(slice(p, diffPos, (int) add));
+            diffPos += add;
+
+            long from = Math.max(oldPos, 0);
+            long to = Math.min(oldPos + add, oldSize);
+            while (from < to) {
+                int length = (int) Math.min(oldChunk.length, to - from);
+                old.position(oldBase + (int) from);
+                old.get(oldChunk, 0, length);
+                int outPos = newPos + (int) (from - oldPos);
+                out.position(outPos);
+                out.get(newChunk, 0, length);
+                for (int i = 0; i < length; ++i) {
+                    newChunk[i] += oldChunk[i];
+                }
+
+                out.position(outPos);
+                out.put(newChunk, 0, length);
+
+                from += length;
+            }
+
+            newPos += add;
+            oldPos += add;
+
+            if (copy < 0 || newPos + copy > newSize || extraPos + copy > end) return null;
+            out.position(newPos);
+            out.put(slice(p, extraPos, (int) copy));
+            extraPos += copy;
+
+            newPos += copy;
+            oldPos += seek;
+        }
+
+        out.clear();
+        return out;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int from, int length) {
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(from + length);
+        slice.position(from);
+        return slice;
+    }
+
+    // Offsets in bsdiff are 64-bit little-endian sign-magnitude integers.
+    private static long offtin(ByteBuffer buf, int index) {
+        long y = buf.get(index + 7) & 0x7F;
+        for (int i = 6; i >= 0; --i) {
+            y = y * 256 + (buf.get(index + i) & 0xFF);
+        }
+
+        if ((buf.get(index + 7) & 0x80) != 0) y = -y;
+        return y;
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!mBuffer.hasRemaining()) return -1;
+            return mBuffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!mBuffer.hasRemaining()) return -1;
+            int count = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mBuffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.kh.rnairlite;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Assets left out of assets.tar by the CLI, which are fetched after the bundle is activated.
+ * lazy.manifest in a generation lists them as "size sha256 path" after a version line. Each one
+ * is served by the CDN at android/assets/<sha256>, and cached by its hash in a folder shared by
+ * all generations, where least recently used files are evicted once the cache is over budget.
+ */
+public class RNAirLazyAssets {
+    private static final String ManifestVersion = "1";
+    private static final String AssetsPath = "android/assets/";
+    private static final int ChunkSize = 10240;
+    private static final long DefaultCacheSize = 64 * 1024 * 1024;
+    private static final int TimeoutInMs = 10000;
+
+    private final File mCacheFolder;
+    private long mCacheSize = DefaultCacheSize;
+    private final ConcurrentHashMap<String, Object> mFetching = new ConcurrentHashMap<>();
+    private @Nullable File mManifestFile;
+    private Map<String, Entry> mManifest = Collections.emptyMap();
+
+    public static class Entry {
+        final String mPath;
+        final long mSize;
+        final String mHash;
+
+        Entry(String path, long size, String hash) {
+            mPath = path;
+            mSize = size;
+            mHash = hash;
+        }
+    }
+
+    public RNAirLazyAssets(File cacheFolder) {
+        mCacheFolder = cacheFolder;
+    }
+
+    public void setCacheSize(long bytes) {
+        mCacheSize = bytes;
+    }
+
+    /**
+     * Returns the cached file of an asset listed in the manifest, and fetches it first if it is
+     * not cached yet. Null is returned if the asset is not a lazy one or fails to be fetched.
+     *
+     * @param path of the asset relative to the folder of the JS bundle.
+     */
+    public @Nullable File resolve(String uri, File manifestFile, String path) {
+        if (!uri.endsWith("/")) uri += "/";
+        Entry entry = getManifest(manifestFile).get(path);
+        if (entry == null) return null;
+        String error = fetch(uri, entry);
+        if (error != null) return null;
+        return getCacheFile(entry);
+    }
+
+    // Fetches all assets in the manifest not cached yet, up to concurrency ones at the same time.
+    public String prefetch(String uri, File manifestFile, int concurrency)
+            throws InterruptedException {
+        if (!uri.endsWith("/")) uri += "/";
+        Collection<Entry> entries = getManifest(manifestFile).values();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(concurrency, 1));
+        try {
+            final String finalURI = uri;
+            List<Future<String>> results = new ArrayList<>();
+            for (final Entry entry : entries) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return fetch(finalURI, entry);
+                    }
+                }));
+            }
+
+            for (Future<String> result : results) {
+                String error = result.get();
+                if (error != null) return error;
+            }
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return e.toString();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Log.d(RNAirLiteModule.Tag, entries.size() + " lazy assets are cached");
+        return null;
+    }
+
+    private synchronized Map<String, Entry> getManifest(File manifestFile) {
+        if (manifestFile.equals(mManifestFile)) return mManifest;
+        Map<String, Entry> manifest = new HashMap<>();
+        if (manifestFile.exists()) {
+            String error = load(manifestFile, manifest);
+            if (error != null) manifest.clear();
+        }
+
+        mManifestFile = manifestFile;
+        mManifest = manifest;
+        return manifest;
+    }
+
+    private File getCacheFile(Entry entry) {
+        return new File(mCacheFolder, entry.mHash);
+    }
+
+    private String fetch(String uri, Entry entry) {
+        File cached = getCacheFile(entry);
+        // Either a background prefetch or the first access fetches an asset, never both.
+        Object lock = new Object();
+        Object existing = mFetching.putIfAbsent(entry.mHash, lock);
+        if (existing != null) lock = existing;
+        synchronized (lock) {
+            try {
+                if (cached.length() == entry.mSize) {
+                    cached.setLastModified(System.currentTimeMillis());
+                    return null;
+                }
+
+                String error = download(uri + AssetsPath + entry.mHash, entry, cached);
+                if (error != null) return error;
+                evict(cached);
+                return null;
+            } finally {
+                mFetching.remove(entry.mHash, lock);
+            }
+        }
+    }
+
+    private String download(String uri, Entry entry, File dst) {
+        HttpURLConnection conn = null;
+        InputStream is = null;
+        OutputStream out = null;
+        File tmp = null;
+        try {
+            conn = (HttpURLConnection) new URL(uri).openConnection();
+            conn.setReadTimeout(TimeoutInMs);
+            conn.setConnectTimeout(TimeoutInMs);
+            conn.connect();
+            int responseCode = conn.getResponseCode();
+            if (responseCode != 200) {
+                String error = "Got a HTTP status " + responseCode + " when " + entry.mPath +
+                        " had been fetched";
+                Log.d(RNAirLiteModule.Tag, error);
+                return error;
+            }
+
+            // Other processes may fetch the same asset, so it is renamed to its hash only after
+            // being verified.
+            tmp = File.createTempFile(entry.mHash, ".tmp", mCacheFolder);
+            is = conn.getInputStream();
+            out = new FileOutputStream(tmp);
+            MessageDigest md = RNAirIntegrityIndex.createDigest();
+            byte[] chunk = new byte[ChunkSize];
+            int count;
+            while ((count = is.read(chunk)) != -1) {
+                md.update(chunk, 0, count);
+                out.write(chunk, 0, count);
+            }
+
+            out.close();
+            out = null;
+            if (!entry.mHash.equals(RNAirIntegrityIndex.toHex(md.digest()))) {
+                String error = entry.mPath + " fetched is corrupted";
+                Log.e(RNAirLiteModule.Tag, error);
+                return error;
+            }
+
+            if (!tmp.renameTo(dst)) {
+                String error = "Fail to move " + entry.mPath + " into the asset cache";
+                Log.e(RNAirLiteModule.Tag, error);
+                return error;
+            }
+
+            tmp = null;
+            Log.d(RNAirLiteModule.Tag, entry.mPath + " is fetched");
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return e.toString();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return e.toString();
+        } finally {
+            try {
+                if (is != null) is.close();
+                if (out != null) out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            if (tmp != null) tmp.delete();
+            if (conn != null) conn.disconnect();
+        }
+    }
+
+    /**
+     * Deletes least recently used files until the cache fits the budget. Files not listed in the
+     * current manifest go first.
+     */
+    private void evict(File justFetched) {
+        File[] files = mCacheFolder.listFiles();
+        if (files == null) return;
+
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+
+        if (total <= mCacheSize) return;
+
+        final Set<String> inUse = new HashSet<>();
+        synchronized (this) {
+            for (Entry entry : mManifest.values()) {
+                inUse.add(entry.mHash);
+            }
+        }
+
+        List<File> candidates = new ArrayList<>(Arrays.asList(files));
+        Collections.sort(candidates, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                boolean lhsInUse = inUse.contains(lhs.getName());
+                boolean rhsInUse = inUse.contains(rhs.getName());
+                if (lhsInUse != rhsInUse) return lhsInUse ? 1 : -1;
+                long diff = lhs.lastModified() - rhs.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+
+        for (File file : candidates) {
+            if (total <= mCacheSize) break;
+            if (file.equals(justFetched) || file.getName().endsWith(".tmp")) continue;
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                Log.d(RNAirLiteModule.Tag, "Evicted " + file.getName() + " from the asset cache");
+            }
+        }
+    }
+
+    private static String load(File src, Map<String, Entry> manifest) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(src), "UTF-8"));
+            String line = reader.readLine();
+            if (!ManifestVersion.equals(line)) {
+                String error = "Unsupported lazy asset manifest version " + line;
+                Log.e(RNAirLiteModule.Tag, error);
+                return error;
+            }
+
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                String[] fields = line.split(" ", 3);
+                if (fields.length != 3) {
+                    String error = "Lazy asset manifest is corrupted at " + line;
+                    Log.e(RNAirLiteModule.Tag, error);
+                    return error;
+                }
+
+                manifest.put(fields[2], new Entry(fields[2], Long.parseLong(fields[0]),
+                        fields[1]));
+            }
+
+            return null;
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            return e.toString();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return e.toString();
+        } finally {
+            try {
+                if (reader != null) reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
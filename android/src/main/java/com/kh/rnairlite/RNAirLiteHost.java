@@ -1,7 +1,13 @@
 package com.kh.rnairlite;
 
+import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
+import android.os.AsyncTask;
+import android.os.Bundle;
 import android.util.Log;
 
 import com.facebook.infer.annotation.Assertions;
@@ -11,6 +17,7 @@ import com.facebook.react.ReactNativeHost;
 import com.facebook.react.ReactPackage;
 import com.facebook.react.bridge.DefaultNativeModuleCallExceptionHandler;
 import com.facebook.react.bridge.NativeModuleCallExceptionHandler;
+import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.UiThreadUtil;
 
 import junit.framework.Assert;
@@ -24,18 +31,158 @@ import javax.annotation.Nullable;
  * Created by KH on 9/14/16.
  */
 public abstract class RNAirLiteHost extends ReactNativeHost {
+    private static final long DefaultStandbyMemoryBudget = 64 * 1024 * 1024;
+    // Most of a React instance, i.e. the JS VM and the bundle loaded, lives out of the Java heap,
+    // so the standby needs only a part of the budget as free heap.
+    private static final long DefaultStandbyHeapBudget = 16 * 1024 * 1024;
+
     private final
       DefaultNativeModuleCallExceptionHandler mDefaultExceptionHandler =
       new DefaultNativeModuleCallExceptionHandler();
 
     private final RNAirPatchManager mPatchManager;
     private final Application mApplication;
+    private final RNAirInstallThrottle mInstallThrottle;
+    private int mStartedActivities = 0;
+    private volatile boolean mUIBusy = false;
+
+    private @Nullable StandbyListener mStandbyListener;
+    private long mStandbyMemoryBudget = DefaultStandbyMemoryBudget;
+    private long mStandbyHeapBudget = DefaultStandbyHeapBudget;
+    private @Nullable ReactInstanceManager mStandby;
+    private boolean mStandbyReady = false;
+    private boolean mActivateStandbyOnReady = false;
+
+    /**
+     * Once a standby React instance is activated, the old one is destroyed. Root views attached to
+     * the old instance, e.g. the one in ReactActivity, must be recreated, which is cheap since the
+     * new instance has been initialized already.
+     */
+    public interface StandbyListener {
+        void onStandbyActivated(ReactInstanceManager reactInstanceManager);
+    }
 
     public RNAirLiteHost(Application application) {
         super(application);
         Assert.assertNotNull(application);
         mApplication = application;
-        mPatchManager = new RNAirPatchManager(application, getJSMainModuleName());
+        mPatchManager = new RNAirPatchManager(application, getJSMainModuleName(),
+                getBundleAssetName());
+        mInstallThrottle = new RNAirInstallThrottle(application);
+        // Installs by the headless API pre-warm as well as those started by JS.
+        mPatchManager.setInstallListener(new RNAirPatchManager.InstallListener() {
+            @Override
+            public void onPatchInstalled(int version) {
+                prewarm();
+            }
+        });
+        mApplication.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                    dropStandby();
+                    mInstallThrottle.onLowMemory();
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                dropStandby();
+                mInstallThrottle.onLowMemory();
+            }
+        });
+        mApplication.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+            }
+
+            @Override
+            public void onActivityStarted(Activity activity) {
+                ++mStartedActivities;
+            }
+
+            @Override
+            public void onActivityResumed(Activity activity) {
+            }
+
+            @Override
+            public void onActivityPaused(Activity activity) {
+            }
+
+            @Override
+            public void onActivityStopped(Activity activity) {
+                if (--mStartedActivities == 0) activatePendingPatchInBackground();
+            }
+
+            @Override
+            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+            }
+
+            @Override
+            public void onActivityDestroyed(Activity activity) {
+            }
+        });
+    }
+
+    public RNAirInstallThrottle getInstallThrottle() {
+        return mInstallThrottle;
+    }
+
+    /**
+     * Pauses installs in background while the UI is busy, e.g. during animations or scrolling, and
+     * downloads if they are throttled, e.g. while requests of the APP are in flight.
+     */
+    public void setUIBusy(boolean busy) {
+        mUIBusy = busy;
+        mInstallThrottle.setBusy(busy);
+        RNAirDownloadThrottle downloadThrottle = mPatchManager.getDownloadThrottle();
+        if (downloadThrottle != null) downloadThrottle.setBusy(busy);
+    }
+
+    public boolean isUIBusy() {
+        return mUIBusy;
+    }
+
+    // Patches installed in background are activated once the APP goes to background.
+    private void activatePendingPatchInBackground() {
+        if (!hasInstance() || !mPatchManager.hasPendingPatch()) return;
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                return mPatchManager.activatePendingPatch();
+            }
+
+            @Override
+            protected void onPostExecute(Boolean activated) {
+                if (activated) reboot();
+            }
+        }.execute();
+    }
+
+    /**
+     * Pre-warms a React instance on the new bundle after a patch is installed, so restarting
+     * turns into swapping root views. Set to null to restart by recreating the React context.
+     */
+    public void setStandbyListener(@Nullable StandbyListener listener) {
+        mStandbyListener = listener;
+    }
+
+    // Memory of the system the standby React instance may take, 64MB by default.
+    public void setStandbyMemoryBudget(long bytes) {
+        mStandbyMemoryBudget = bytes;
+    }
+
+    // Free Java heap of this process the standby React instance needs, 16MB by default.
+    public void setStandbyHeapBudget(long bytes) {
+        mStandbyHeapBudget = bytes;
+    }
+
+    public RNAirPatchManager getPatchManager() {
+        return mPatchManager;
     }
 
     @Override
@@ -46,8 +193,19 @@ public abstract class RNAirLiteHost extends ReactNativeHost {
 
     @Override
     protected final ReactInstanceManager createReactInstanceManager() {
+        if (mStandby != null) {
+            ReactInstanceManager standby = mStandby;
+            mStandby = null;
+            mStandbyReady = false;
+            return standby;
+        }
+
         // FIXME init patch manager as early as possible once Application constructed.
         mPatchManager.setup();
+        return buildReactInstanceManager();
+    }
+
+    private ReactInstanceManager buildReactInstanceManager() {
         ReactInstanceManager.Builder builder = ReactInstanceManager.builder()
                 .setApplication(mApplication)
                 .setJSMainModuleName(getJSMainModuleName())
@@ -68,6 +226,8 @@ public abstract class RNAirLiteHost extends ReactNativeHost {
                             return;
                         }
 
+                        // The standby, if any, runs the bundle rolled back.
+                        dropStandby();
                         reboot();
                     }
                 });
@@ -88,10 +248,90 @@ public abstract class RNAirLiteHost extends ReactNativeHost {
         return builder.build();
     }
 
+    /**
+     * Builds a standby React instance on the newest bundle in background. Returns false if it is
+     * disabled or there is not enough memory.
+     */
+    public boolean prewarm() {
+        if (mStandbyListener == null || getUseDeveloperSupport()) return false;
+        if (!hasEnoughMemoryForStandby()) {
+            Log.w(RNAirLiteModule.Tag, "No enough memory to pre-warm the new bundle.");
+            return false;
+        }
+
+        UiThreadUtil.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                dropStandby();
+                final ReactInstanceManager standby = buildReactInstanceManager();
+                mStandby = standby;
+                standby.addReactInstanceEventListener(
+                        new ReactInstanceManager.ReactInstanceEventListener() {
+                    @Override
+                    public void onReactContextInitialized(ReactContext context) {
+                        standby.removeReactInstanceEventListener(this);
+                        if (mStandby != standby) return;
+                        Log.d(RNAirLiteModule.Tag, "The standby React instance is ready.");
+                        mStandbyReady = true;
+                        if (mActivateStandbyOnReady) activateStandby();
+                    }
+                });
+                standby.createReactContextInBackground();
+            }
+        });
+
+        return true;
+    }
+
+    private boolean hasEnoughMemoryForStandby() {
+        ActivityManager am = (ActivityManager) mApplication.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        am.getMemoryInfo(memoryInfo);
+        if (memoryInfo.lowMemory) return false;
+        if (memoryInfo.availMem - memoryInfo.threshold < mStandbyMemoryBudget) return false;
+
+        Runtime runtime = Runtime.getRuntime();
+        long heapFree = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return heapFree >= mStandbyHeapBudget;
+    }
+
+    private void dropStandby() {
+        UiThreadUtil.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mStandby == null) return;
+                Log.d(RNAirLiteModule.Tag, "Drop the standby React instance.");
+                mStandby.destroy();
+                mStandby = null;
+                mStandbyReady = false;
+                mActivateStandbyOnReady = false;
+            }
+        });
+    }
+
+    // Must run on the UI thread.
+    private void activateStandby() {
+        mActivateStandbyOnReady = false;
+        clear();
+        ReactInstanceManager reactInstanceManager = getReactInstanceManager();
+        if (mStandbyListener != null) mStandbyListener.onStandbyActivated(reactInstanceManager);
+    }
+
     public void reboot() {
         UiThreadUtil.runOnUiThread(new Runnable() {
             @Override
             public void run() {
+                if (mStandby != null) {
+                    if (mStandbyReady) {
+                        activateStandby();
+                    } else {
+                        mActivateStandbyOnReady = true;
+                    }
+
+                    return;
+                }
+
                 try {
                     Class<?> RIManagerClazz = getReactInstanceManager().getClass();
                     Method method = RIManagerClazz.getDeclaredMethod("recreateReactContextInBackground");
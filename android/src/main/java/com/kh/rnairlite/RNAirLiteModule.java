@@ -5,6 +5,7 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
@@ -12,6 +13,7 @@ import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -28,6 +30,7 @@ public class RNAirLiteModule extends ReactContextBaseJavaModule {
     private final String EventError = "error";
     private final String EventDownloaded = "downloaded";
     private final String EventInstalled = "installed";
+    private final String EventPreflight = "preflight";
 
     RNAirPatchManager mPatchManager;
     RNAirLiteHost mHostHandle;
@@ -41,6 +44,7 @@ public class RNAirLiteModule extends ReactContextBaseJavaModule {
 
         @Override
         protected void onPostExecute(String error) {
+            sendPreflight();
             if (error != null) {
                 sendError(error);
                 return;
@@ -74,6 +78,7 @@ public class RNAirLiteModule extends ReactContextBaseJavaModule {
 
         @Override
         protected void onPostExecute(String error) {
+            sendPreflight();
             if (error != null) {
                 sendError(error);
                 return;
@@ -112,6 +117,45 @@ public class RNAirLiteModule extends ReactContextBaseJavaModule {
         }
     }
 
+    class ResolveAssetTask extends AsyncTask<Void, Void, File> {
+        private final String mPath;
+        private final Promise mPromise;
+
+        public ResolveAssetTask(String path, Promise promise) {
+            super();
+            mPath = path;
+            mPromise = promise;
+        }
+
+        @Override
+        protected File doInBackground(Void... params) {
+            return mPatchManager.resolveAsset(mPath);
+        }
+
+        @Override
+        protected void onPostExecute(File asset) {
+            if (asset == null) {
+                mPromise.reject("ENOENT", mPath + " is neither extracted nor fetched");
+                return;
+            }
+
+            mPromise.resolve("file://" + asset.getAbsolutePath());
+        }
+    }
+
+    class PrefetchAssetsTask extends AsyncTask<Void, Void, String> {
+
+        @Override
+        protected String doInBackground(Void... params) {
+            return mPatchManager.prefetchLazyAssets();
+        }
+
+        @Override
+        protected void onPostExecute(String error) {
+            if (error != null) sendError(error);
+        }
+    }
+
     class RebootTask extends AsyncTask<Void, Void, Void> {
 
         @Override
@@ -136,6 +180,7 @@ public class RNAirLiteModule extends ReactContextBaseJavaModule {
         constants.put("EventError", EventError);
         constants.put("EventDownloaded", EventDownloaded);
         constants.put("EventInstalled", EventInstalled);
+        constants.put("EventPreflight", EventPreflight);
         return constants;
     }
 
@@ -145,8 +190,10 @@ public class RNAirLiteModule extends ReactContextBaseJavaModule {
     }
 
     @ReactMethod
-    public void init(String url, int bundleVersion, boolean storePatchInSD) {
+    public void init(String url, int bundleVersion, boolean storePatchInSD,
+                     boolean contentAddressed) {
         mPatchManager.setURI(url);
+        mPatchManager.setContentAddressed(contentAddressed);
         mPatchManager.setBundleVersion(bundleVersion);
         if (storePatchInSD) mPatchManager.savePatchInSDCard();
     }
@@ -166,6 +213,75 @@ public class RNAirLiteModule extends ReactContextBaseJavaModule {
         new InstallPatchTask(restartManually).execute();
     }
 
+    @ReactMethod
+    public void installPatchWhenIdle() {
+        // Queued with the headless steps, rather than on AsyncTask threads shared by the APP.
+        mPatchManager.installPatchAsync(mHostHandle.getInstallThrottle(), true,
+                new RNAirPatchManager.UpdateCallback() {
+                    @Override
+                    public void onComplete(RNAirUpdateResult result) {
+                        if (!result.isSuccessful()) {
+                            sendError(result.getError());
+                            return;
+                        }
+
+                        sendVersion(EventInstalled, mPatchManager.getRemotePatchVersion());
+                    }
+                });
+    }
+
+    @ReactMethod
+    public void setBusy(boolean busy) {
+        mHostHandle.setUIBusy(busy);
+    }
+
+    @ReactMethod
+    public void setDownloadRateLimit(double bytesPerSecond) {
+        RNAirDownloadThrottle throttle = null;
+        if (bytesPerSecond > 0) {
+            throttle = new RNAirDownloadThrottle((long) bytesPerSecond);
+            // Otherwise a throttle set while busy goes on until the UI is busy again.
+            throttle.setBusy(mHostHandle.isUIBusy());
+        }
+
+        mPatchManager.setDownloadThrottle(throttle);
+    }
+
+    @ReactMethod
+    public void reportRequestLatency(double ms) {
+        RNAirDownloadThrottle throttle = mPatchManager.getDownloadThrottle();
+        if (throttle != null) throttle.reportLatency((long) ms);
+    }
+
+    @ReactMethod
+    public void resolveAsset(String path, Promise promise) {
+        new ResolveAssetTask(path, promise).execute();
+    }
+
+    @ReactMethod
+    public void prefetchAssets() {
+        new PrefetchAssetsTask().execute();
+    }
+
+    @ReactMethod
+    public void getDeviceProfile(Promise promise) {
+        RNAirDeviceProfile profile = mPatchManager.getDeviceProfile();
+        WritableMap result = Arguments.createMap();
+        result.putInt("cores", profile.getCores());
+        result.putDouble("totalMemory", profile.getTotalMemory());
+        result.putString("memoryClass", profile.getMemoryClass().toString());
+        result.putDouble("storageThroughput", profile.getStorageThroughput());
+        result.putDouble("hashThroughput", profile.getHashThroughput());
+        result.putDouble("decompressThroughput", profile.getDecompressThroughput());
+        result.putBoolean("measured", profile.isMeasured());
+        result.putInt("chunkSize", profile.getChunkSize());
+        result.putInt("decodeThreads", profile.getDecodeThreads());
+        result.putInt("syncThreads", profile.getSyncThreads());
+        result.putString("verification", profile.getVerification().toString());
+        result.putInt("downloadConcurrency", profile.getDownloadConcurrency());
+        promise.resolve(result);
+    }
+
     @ReactMethod
     public void restart() {
         new RebootTask().execute();
@@ -192,6 +308,21 @@ public class RNAirLiteModule extends ReactContextBaseJavaModule {
         sendEvent(this.getReactApplicationContext(), EventProgress, params);
     }
 
+    private void sendPreflight() {
+        RNAirPreflight preflight = mPatchManager.getPreflight();
+        if (preflight == null) return;
+        WritableMap params = Arguments.createMap();
+        params.putString("plan", preflight.getPlan().toString());
+        params.putBoolean("feasible", preflight.isFeasible());
+        params.putDouble("downloadBytes", preflight.getDownloadBytes());
+        params.putDouble("peakDiskBytes", preflight.getPeakDiskBytes());
+        params.putDouble("peakMemoryBytes", preflight.getPeakMemoryBytes());
+        params.putDouble("availableDiskBytes", preflight.getAvailableDiskBytes());
+        params.putDouble("availableMemoryBytes", preflight.getAvailableMemoryBytes());
+        if (!preflight.isFeasible()) params.putString("error", preflight.getError());
+        sendEvent(this.getReactApplicationContext(), EventPreflight, params);
+    }
+
     private void sendVersion(String event, int version) {
         if (version > 0)
             sendEvent(this.getReactApplicationContext(), event, version);
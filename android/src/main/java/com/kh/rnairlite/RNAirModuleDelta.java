@@ -0,0 +1,167 @@
+package com.kh.rnairlite;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A delta built by the CLI with the knowledge of RN bundle structure. Modules of the JS bundle and
+ * other files in the tar are matched by their content hashes, so the delta only carries tar
+ * headers and modules or files which are new, while the rest are copied from the old tar.
+ *
+ * Modules are matched with their ids stripped, since inserting a module renumbers every module
+ * after it. An id map op holds pairs of old and new ids, and a remapped copy op is a copy op with
+ * offsets of ids in the range, which are rewritten by the map while copied.
+ *
+ * The delta starts with a magic, the length and the SHA-256 of the new tar, followed by ops. A
+ * copy op holds an offset and a length in the old tar, while a literal op holds bytes verbatim.
+ * The new tar is written op by op, so it never needs to be held in memory.
+ */
+public class RNAirModuleDelta {
+    private static final int Magic = 0x524e4144;
+    private static final int ChunkSize = 10240;
+    private static final byte OpCopy = 'C';
+    private static final byte OpLiteral = 'L';
+    private static final byte OpIdMap = 'M';
+    private static final byte OpRemappedCopy = 'R';
+    private static final byte OpEnd = 'E';
+
+    public static String apply(ByteBuffer delta, ByteBuffer base, File dst,
+                               @Nullable RNAirInstallThrottle throttle) {
+        ByteBuffer ops = delta.duplicate();
+        OutputStream out = null;
+        try {
+            if (ops.getInt() != Magic) return "The module delta is corrupted";
+            long length = ops.getLong();
+            byte[] checksum = new byte[32];
+            ops.get(checksum);
+
+            MessageDigest md = RNAirIntegrityIndex.createDigest();
+            out = new BufferedOutputStream(new FileOutputStream(dst), ChunkSize);
+            byte[] chunk = new byte[ChunkSize];
+            Map<Long, Long> ids = new HashMap<>();
+            long written = 0;
+            while (true) {
+                byte op = ops.get();
+                if (op == OpEnd) break;
+
+                if (op == OpCopy || op == OpRemappedCopy) {
+                    int offset = ops.getInt();
+                    int count = ops.getInt();
+                    if (offset < 0 || count < 0 || (long) offset + count > base.limit()) {
+                        return "Copy op out of the old tar at " + offset;
+                    }
+
+                    int end = offset + count;
+                    int from = offset;
+                    int idCount = op == OpRemappedCopy ? ops.getInt() : 0;
+                    for (int i = 0; i < idCount; ++i) {
+                        int at = offset + ops.getInt();
+                        if (at < from || at >= end) return "No module id at " + at;
+                        written += write(range(base, from, at), md, out, chunk, throttle);
+
+                        long id = 0;
+                        int idEnd = at;
+                        while (idEnd < end && isDigit(base.get(idEnd))) {
+                            id = id * 10 + base.get(idEnd++) - '0';
+                        }
+
+                        if (idEnd == at) return "No module id at " + at;
+                        Long mapped = ids.get(id);
+                        byte[] digits = Long.toString(mapped == null ? id : mapped)
+                                .getBytes("US-ASCII");
+                        written += write(ByteBuffer.wrap(digits), md, out, chunk, throttle);
+                        from = idEnd;
+                    }
+
+                    written += write(range(base, from, end), md, out, chunk, throttle);
+                } else if (op == OpLiteral) {
+                    int count = ops.getInt();
+                    ByteBuffer src = ops.slice();
+                    src.limit(count);
+                    ops.position(ops.position() + count);
+                    written += write(src, md, out, chunk, throttle);
+                } else if (op == OpIdMap) {
+                    int count = ops.getInt();
+                    for (int i = 0; i < count; ++i) {
+                        long from = ops.getInt() & 0xffffffffL;
+                        ids.put(from, ops.getInt() & 0xffffffffL);
+                    }
+                } else {
+                    return "Unknown op " + op + " in the module delta";
+                }
+            }
+
+            out.flush();
+            if (written != length || !Arrays.equals(checksum, md.digest())) {
+                String error = "Tar rebuilt from the module delta doesn't match";
+                Log.e(RNAirLiteModule.Tag, error);
+                return error;
+            }
+
+            Log.d(RNAirLiteModule.Tag, "Rebuilt " + length + " bytes from a module delta of " +
+                    delta.remaining() + " bytes");
+            return null;
+        } catch (BufferUnderflowException e) {
+            e.printStackTrace();
+            return "The module delta is truncated";
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return "The module delta is truncated";
+        } catch (IOException e) {
+            e.printStackTrace();
+            return e.toString();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return e.toString();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return e.toString();
+        } finally {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static ByteBuffer range(ByteBuffer buffer, int from, int to) {
+        ByteBuffer range = buffer.duplicate();
+        range.limit(to);
+        range.position(from);
+        return range;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    // Writes all remaining bytes of src, and returns how many they are.
+    private static int write(ByteBuffer src, MessageDigest md, OutputStream out, byte[] chunk,
+                             @Nullable RNAirInstallThrottle throttle)
+            throws IOException, InterruptedException {
+        int total = src.remaining();
+        while (src.hasRemaining()) {
+            int count = Math.min(chunk.length, src.remaining());
+            src.get(chunk, 0, count);
+            md.update(chunk, 0, count);
+            out.write(chunk, 0, count);
+            if (throttle != null) throttle.onBytesWritten(count);
+        }
+
+        return total;
+    }
+}
@@ -0,0 +1,48 @@
+package com.kh.rnairlite;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Patch engine backed by libbzip2 and libminibsdiff through JNI. Blocks of bzip2 streams are
+ * decoded on a pool of native threads when more than one core is available.
+ */
+public class RNAirNativePatchEngine implements RNAirPatchEngine {
+    private static boolean sLoaded = false;
+
+    private final int mThreads;
+
+    static {
+        try {
+            System.loadLibrary("DiffAndBz2");
+            sLoaded = true;
+        } catch (UnsatisfiedLinkError e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static boolean isAvailable() {
+        return sLoaded;
+    }
+
+    public RNAirNativePatchEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    // 1 thread keeps the serial decoder.
+    public RNAirNativePatchEngine(int threads) {
+        mThreads = Math.max(threads, 1);
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer buffer) {
+        return mThreads > 1 ? decompressParallel(buffer, mThreads) : decompressSerial(buffer);
+    }
+
+    private native ByteBuffer decompressSerial(ByteBuffer buffer);
+
+    // Falls back to the serial decoder for streams of a single block.
+    private native ByteBuffer decompressParallel(ByteBuffer buffer, int threads);
+
+    @Override
+    public native ByteBuffer patch(ByteBuffer raw, ByteBuffer patch);
+}
@@ -0,0 +1,17 @@
+package com.kh.rnairlite;
+
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decompresses and applies patches. Implementations must not depend on the Android runtime so
+ * that they could be exercised and profiled on a plain JVM.
+ *
+ * Buffers passed in and returned are direct buffers holding exactly their bytes from position 0
+ * to capacity, so outputs of one engine could be fed to another. Null is returned on failure.
+ */
+public interface RNAirPatchEngine {
+    @Nullable ByteBuffer decompress(ByteBuffer compressed);
+    @Nullable ByteBuffer patch(ByteBuffer raw, ByteBuffer patch);
+}
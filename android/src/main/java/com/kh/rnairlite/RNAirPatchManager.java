@@ -1,6 +1,11 @@
 package com.kh.rnairlite;
 
 import android.app.Application;
+import android.content.res.AssetFileDescriptor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
@@ -10,9 +15,7 @@ import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.commons.compress.utils.IOUtils;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -24,81 +27,462 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by KH on 9/14/16.
  */
 public class RNAirPatchManager {
-    static {
-        System.loadLibrary("DiffAndBz2");
-    }
-
-    private static final int ChunkSize = 10240;
+    private static final String PendingPatchError =
+            "A patch is installed and pending activation. Activate it before updating again.";
+    private static final long RollbackLockTimeoutMs = 3000;
 
     private boolean mSaveInSD = false;
+    private boolean mCompactStorage = false;
+    private volatile boolean mContentAddressed = false;
+    private volatile @Nullable RNAirPointerManifest mPointer;
+    private volatile @Nullable RNAirPreflight mPreflight;
+    private volatile @Nullable RNAirDownloadThrottle mDownloadThrottle;
+    private volatile RNAirDurability mDurability;
+    private volatile RNAirDeviceProfile mProfile;
     private String mUpdateURI;
     private int mTimeoutInMs = 10000;
-    private @Nullable RNAirFolder.PatchScheme mCurrentJSBundle;
-    private int mVersion = 0;
-    private int mRemoteVersion = 0;
+    private final AtomicReference<RNAirPatchState> mState =
+            new AtomicReference<>(RNAirPatchState.initial());
     private RNAirFolder mFolderManager;
+    private final Application mApplication;
+    private final @Nullable String mBundleAssetName;
+    private volatile RNAirPatchEngine mPatchEngine;
+    private boolean mAutoPatchEngine = true;
+    // Held while the device is measured, rather than the monitor of the manager setup() takes.
+    private final Object mTuneLock = new Object();
+    private final RNAirUpdatePlanner mPlanner;
+    private final RNAirProcessCoordinator mCoordinator;
+    private final RNAirLazyAssets mLazyAssets;
+    private final RNAirAccessLog mAccessLog = new RNAirAccessLog();
+    private volatile boolean mSetup = false;
+    private volatile @Nullable InstallListener mInstallListener;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "RNAirLite-update");
+                }
+            });
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private interface Transition {
+        RNAirPatchState apply(RNAirPatchState state);
+    }
+
+    private enum PackageKind {
+        // The patch against the current generation, the bundle in APK or the base package.
+        Patch,
+        Base,
+        ModuleDelta,
+    }
+
+    // Called on the main thread once an update step started by the headless API is finished.
+    public interface UpdateCallback {
+        void onComplete(RNAirUpdateResult result);
+    }
 
-    private native ByteBuffer decompress(ByteBuffer buffer);
-    private native ByteBuffer patch(ByteBuffer raw, ByteBuffer patch);
+    // Called on the installing thread once a patch is installed and switched to, not deferred.
+    public interface InstallListener {
+        void onPatchInstalled(int version);
+    }
+
+    private interface Step {
+        RNAirUpdateResult run();
+    }
 
-    public RNAirPatchManager(Application application, String jsMainModuleName) {
+    public RNAirPatchManager(Application application, String jsMainModuleName,
+                             @Nullable String bundleAssetName) {
+        mApplication = application;
+        mBundleAssetName = bundleAssetName;
         mFolderManager = new RNAirFolder(application, jsMainModuleName);
+        mPlanner = new RNAirUpdatePlanner(application);
+        mProfile = RNAirDeviceProfile.load(application, mPlanner);
+        mDurability = new RNAirDurability(RNAirDurability.Mode.Batched, mProfile.getSyncThreads());
+        mLazyAssets = new RNAirLazyAssets(mFolderManager.getAssetCacheFolder());
+        mCoordinator = new RNAirProcessCoordinator(mFolderManager.getLockFolder(), new Runnable() {
+            @Override
+            public void run() {
+                if (mSetup) transit(calcAvailablePatch());
+            }
+        });
+        mPatchEngine = createPatchEngine(mProfile);
+    }
+
+    private static RNAirPatchEngine createPatchEngine(RNAirDeviceProfile profile) {
+        if (RNAirNativePatchEngine.isAvailable()) {
+            return new RNAirNativePatchEngine(profile.getDecodeThreads());
+        }
+
+        Log.w(RNAirLiteModule.Tag, "Native patch engine is unavailable. Use the Java one.");
+        return new RNAirJavaPatchEngine();
+    }
+
+    // Engines set here are kept as they are rather than tuned by the device profile.
+    public synchronized void setPatchEngine(RNAirPatchEngine engine) {
+        Assert.assertNotNull(engine);
+        mPatchEngine = engine;
+        mAutoPatchEngine = false;
+    }
+
+    public RNAirPatchEngine getPatchEngine() {
+        return mPatchEngine;
     }
 
-    public void setup() {
+    public synchronized void setup() {
         mFolderManager.init();
-        calcAvailablePatch();
-        if (mCurrentJSBundle != null) {
-            Log.v(RNAirLiteModule.Tag, "Current JS bundle is " + mCurrentJSBundle.getDataFolder());
+        if (hasPendingPatch()) {
+            // Another process may be installing into the temporary folder.
+            RNAirProcessCoordinator.Lock lock = mCoordinator.tryLock();
+            if (lock != null) {
+                try {
+                    if (hasPendingPatch()) {
+                        Log.v(RNAirLiteModule.Tag, "Activating the patch installed in background.");
+                        moveTempToNewest();
+                        mCoordinator.notifyGenerationChanged();
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
         }
+
+        RNAirPatchState state = transit(calcAvailablePatch());
+        mSetup = true;
+        if (state.getCurrentJSBundle() != null) {
+            Log.v(RNAirLiteModule.Tag, "Current JS bundle is " +
+                    state.getCurrentJSBundle().getDataFolder());
+            warmUp(state.getCurrentJSBundle());
+        }
+    }
+
+    /*
+     * Prefetches files the generation read at its last launch into the page cache, or the ones
+     * the other generation read if it hasn't been launched yet, then records reads of this launch.
+     */
+    private void warmUp(RNAirFolder.PatchScheme ps) {
+        RNAirFolder.PatchScheme other = mFolderManager.getNewestPatchSchema();
+        if (other.getDataFolder().equals(ps.getDataFolder())) {
+            other = mFolderManager.getStablePatchSchema();
+        }
+
+        mAccessLog.prefetch(ps.getDataFolder(), ps.getBundleFile(), ps.getAccessLogFile(),
+                other.getAccessLogFile());
+        mAccessLog.record(ps.getDataFolder(), ps.getAccessLogFile());
+    }
+
+    /*
+     * The headless API below runs update steps on a background thread and could be called before
+     * the JS bridge exists, e.g. in Application.onCreate or a background job. Steps are queued and
+     * run one by one. Results are delivered by the Future returned and the optional callback.
+     */
+
+    public Future<RNAirUpdateResult> checkForUpdateAsync(@Nullable UpdateCallback callback) {
+        return submit(new Step() {
+            @Override
+            public RNAirUpdateResult run() {
+                return checkStep();
+            }
+        }, callback);
+    }
+
+    public Future<RNAirUpdateResult> downloadPatchesAsync(
+            @Nullable final RNAirLiteModule.ProgressUpdater progress,
+            @Nullable UpdateCallback callback) {
+        return submit(new Step() {
+            @Override
+            public RNAirUpdateResult run() {
+                return downloadStep(progress);
+            }
+        }, callback);
+    }
+
+    /**
+     * @param deferActivation keeps the patch pending until the next cold start or the host
+     *                        reboots in background, see RNAirLiteHost. Otherwise the host should
+     *                        be rebooted to run the patch installed.
+     */
+    public Future<RNAirUpdateResult> installPatchAsync(final boolean deferActivation,
+                                                       @Nullable UpdateCallback callback) {
+        return installPatchAsync(null, deferActivation, callback);
+    }
+
+    /**
+     * @param throttle slows the install down and pauses it if it is not null, and the install
+     *                 runs at the lowest priority of threads then.
+     */
+    public Future<RNAirUpdateResult> installPatchAsync(
+            @Nullable final RNAirInstallThrottle throttle, final boolean deferActivation,
+            @Nullable UpdateCallback callback) {
+        return submit(new Step() {
+            @Override
+            public RNAirUpdateResult run() {
+                return installStep(throttle, deferActivation);
+            }
+        }, callback);
+    }
+
+    // Checks, downloads and installs a newer patch if any in a row.
+    public Future<RNAirUpdateResult> updateAsync(final boolean deferActivation,
+                                                 @Nullable UpdateCallback callback) {
+        return submit(new Step() {
+            @Override
+            public RNAirUpdateResult run() {
+                RNAirUpdateResult result = checkStep();
+                if (result.getStatus() != RNAirUpdateResult.Status.Available) return result;
+                result = downloadStep(null);
+                if (!result.isSuccessful()) return result;
+                return installStep(null, deferActivation);
+            }
+        }, callback);
+    }
+
+    private Future<RNAirUpdateResult> submit(final Step step,
+                                             @Nullable final UpdateCallback callback) {
+        return mExecutor.submit(new Callable<RNAirUpdateResult>() {
+            @Override
+            public RNAirUpdateResult call() {
+                if (!mSetup) setup();
+                final RNAirUpdateResult result = step.run();
+                Log.d(RNAirLiteModule.Tag, "Headless update step finished: " + result);
+                if (callback != null) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onComplete(result);
+                        }
+                    });
+                }
+
+                return result;
+            }
+        });
+    }
+
+    private RNAirUpdateResult checkStep() {
+        String error = checkForUpdate();
+        RNAirPatchState state = mState.get();
+        if (error != null) return RNAirUpdateResult.failed(error, state);
+        return RNAirUpdateResult.of(state.getRemoteVersion() > state.getVersion() ?
+                RNAirUpdateResult.Status.Available : RNAirUpdateResult.Status.UpToDate, state);
+    }
+
+    private RNAirUpdateResult downloadStep(@Nullable RNAirLiteModule.ProgressUpdater progress) {
+        if (progress == null) {
+            progress = new RNAirLiteModule.ProgressUpdater() {
+                @Override
+                public void update(int downloaded, int total) {
+                }
+            };
+        }
+
+        String error = downloadPatches(progress);
+        if (error != null) return RNAirUpdateResult.failed(error, mState.get());
+        return RNAirUpdateResult.of(RNAirUpdateResult.Status.Downloaded, mState.get());
+    }
+
+    private RNAirUpdateResult installStep(@Nullable RNAirInstallThrottle throttle,
+                                          boolean deferActivation) {
+        int priority = Process.getThreadPriority(Process.myTid());
+        if (throttle != null) Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+        String error;
+        try {
+            error = installPatch(throttle, deferActivation);
+        } finally {
+            if (throttle != null) Process.setThreadPriority(priority);
+        }
+
+        if (error != null) return RNAirUpdateResult.failed(error, mState.get());
+        return RNAirUpdateResult.of(deferActivation ? RNAirUpdateResult.Status.Pending :
+                RNAirUpdateResult.Status.Installed, mState.get());
     }
 
     public void setURI(String uri) {
         mUpdateURI = uri;
     }
 
-    public void setBundleVersion(int version) {
-        if (mVersion < version) mVersion = version;
+    public void setBundleVersion(final int version) {
+        transit(new Transition() {
+            @Override
+            public RNAirPatchState apply(RNAirPatchState state) {
+                return state.getVersion() < version ? state.withVersion(version) : state;
+            }
+        });
     }
 
     public void savePatchInSDCard() {
         mSaveInSD = true;
     }
 
+    /**
+     * In compact mode, patch.data is deleted once installed and assets.tar is replaced by a
+     * skeleton, from which it is rebuilt with the extracted files at the next update.
+     */
+    public void setCompactStorage(boolean compact) {
+        mCompactStorage = compact;
+    }
+
+    public void setLazyAssetCacheSize(long bytes) {
+        mLazyAssets.setCacheSize(bytes);
+    }
+
+    /**
+     * Resolves packages through the pointer manifest at android/manifest, which names immutable
+     * objects by their hashes, instead of fixed paths like android/newest/base.
+     */
+    public void setContentAddressed(boolean contentAddressed) {
+        mContentAddressed = contentAddressed;
+    }
+
+    // Batched by default.
+    public synchronized void setDurability(RNAirDurability.Mode mode) {
+        mDurability = new RNAirDurability(mode, mProfile.getSyncThreads());
+    }
+
+    // Downloads of patches run at full speed if the throttle is null.
+    public void setDownloadThrottle(@Nullable RNAirDownloadThrottle throttle) {
+        mDownloadThrottle = throttle;
+    }
+
+    public void setInstallListener(@Nullable InstallListener listener) {
+        mInstallListener = listener;
+    }
+
+    public @Nullable RNAirDownloadThrottle getDownloadThrottle() {
+        return mDownloadThrottle;
+    }
+
+    // The profile the update pipeline is tuned by, which is measured at the first download or
+    // install.
+    public RNAirDeviceProfile getDeviceProfile() {
+        return mProfile;
+    }
+
+    // Measures the device once if it hasn't been, then tunes the pipeline by the profile.
+    // Measuring takes a while, so the profile and what it tunes are only published under the
+    // monitor of the manager, which setup() holds on the main thread.
+    private void tune() {
+        if (mProfile.isProbed()) return;
+        synchronized (mTuneLock) {
+            if (mProfile.isProbed()) return;
+            RNAirDeviceProfile profile = RNAirDeviceProfile.measure(mApplication, mPlanner,
+                    mFolderManager.getLockFolder());
+            synchronized (this) {
+                mProfile = profile;
+                mDurability = new RNAirDurability(mDurability.getMode(), profile.getSyncThreads());
+                if (mAutoPatchEngine) mPatchEngine = createPatchEngine(profile);
+            }
+        }
+    }
+
+    public RNAirPatchState getState() {
+        return mState.get();
+    }
+
     public int getRemotePatchVersion() {
-        return mRemoteVersion;
+        return mState.get().getRemoteVersion();
     }
 
-    public int getVersion() { return mVersion; }
+    public int getVersion() { return mState.get().getVersion(); }
 
     public String getJSBundleFile() {
-        if (mCurrentJSBundle == null) return null;
-        return mCurrentJSBundle.getBundleFile().getAbsolutePath();
+        RNAirFolder.PatchScheme current = mState.get().getCurrentJSBundle();
+        if (current == null) return null;
+        return current.getBundleFile().getAbsolutePath();
+    }
+
+    public boolean hasAnyPatches() { return mState.get().getCurrentJSBundle() != null; }
+
+    /**
+     * Returns the local file of an asset of the current bundle, which is fetched first if it is
+     * a lazy one not cached yet. Null is returned if it is neither extracted nor fetched.
+     *
+     * @param path of the asset relative to the folder of the JS bundle, e.g. drawable-mdpi/a.png
+     */
+    public @Nullable File resolveAsset(String path) {
+        RNAirFolder.PatchScheme current = mState.get().getCurrentJSBundle();
+        if (current == null) return null;
+
+        File extracted = new File(current.getDataFolder(), path);
+        if (extracted.isFile()) return extracted;
+        if (mUpdateURI == null) return null;
+        return mLazyAssets.resolve(mUpdateURI, current.getLazyManifestFile(), path);
     }
 
-    public boolean hasAnyPatches() { return mCurrentJSBundle != null; }
+    // Fetches all lazy assets of the current bundle in advance.
+    public String prefetchLazyAssets() {
+        RNAirFolder.PatchScheme current = mState.get().getCurrentJSBundle();
+        if (current == null) return null;
+        if (mUpdateURI == null) {
+            return "An URI where patches download from is required.";
+        }
 
+        try {
+            return mLazyAssets.prefetch(mUpdateURI, current.getLazyManifestFile(),
+                    mProfile.getDownloadConcurrency());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return e.toString();
+        }
+    }
+
+    /**
+     * Fails only if this process is installing, which may be switching generations at the same
+     * time. A check or a download doesn't touch the generations, so it doesn't stop a broken
+     * bundle from being dropped. If another process keeps the update lock longer than
+     * RollbackLockTimeoutMs, the generation is dropped without it rather than crashing again.
+     */
     public boolean rollback() {
-        Assert.assertNotNull(mCurrentJSBundle);
-
-        File bundle = mCurrentJSBundle.getBundleFile();
-        File patch = bundle.getParentFile();
-        if (!patch.exists()) {
-            Log.w(RNAirLiteModule.Tag, patch.getAbsolutePath() + " doesn't exist!");
-            mCurrentJSBundle = null;
-            calcAvailablePatch();
-            return true;
+        if (mState.get().getPhase() == RNAirPatchState.Phase.Installing) {
+            Log.w(RNAirLiteModule.Tag, "Fail to roll back: the patch is being installed.");
+            return false;
         }
 
-        RNAirFS.deletePatch(patch);
-        mCurrentJSBundle = null;
-        calcAvailablePatch();
-        return true;
+        RNAirProcessCoordinator.Lock lock = mCoordinator.tryLock(RollbackLockTimeoutMs);
+        if (lock == null) {
+            Log.w(RNAirLiteModule.Tag, "The update lock is busy. Roll back without it.");
+        }
+
+        try {
+            RNAirFolder.PatchScheme current = mState.get().getCurrentJSBundle();
+            Assert.assertNotNull(current);
+
+            File bundle = current.getBundleFile();
+            File patch = bundle.getParentFile();
+            if (!patch.exists()) {
+                Log.w(RNAirLiteModule.Tag, patch.getAbsolutePath() + " doesn't exist!");
+            } else {
+                RNAirFS.deletePatch(patch);
+            }
+
+            transit(calcAvailablePatch());
+            mCoordinator.notifyGenerationChanged();
+            return true;
+        } finally {
+            if (lock != null) lock.release();
+        }
     }
 
     public String checkForUpdate() {
@@ -106,73 +490,344 @@ public class RNAirPatchManager {
             return "An URI where patches download from is required.";
         }
 
+        String error = enter(RNAirPatchState.Phase.Checking);
+        if (error != null) return error;
+        try {
+            RNAirPointerManifest pointer = null;
+            if (mContentAddressed) {
+                pointer = RNAirPointerManifest.fetch(mUpdateURI, mTimeoutInMs);
+                mPointer = pointer;
+            }
+
+            return checkForUpdateInternal(pointer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return e.toString();
+        } finally {
+            leave(RNAirPatchState.Phase.Checking);
+        }
+    }
+
+    private String checkForUpdateInternal(@Nullable RNAirPointerManifest pointer) {
+        // The patch is probed by the state, so a base chosen by the last check is reset first.
+        RNAirPatchState state = transit(new Transition() {
+            @Override
+            public RNAirPatchState apply(RNAirPatchState state) {
+                return state.withRemoteVersion(state.getRemoteVersion(), false);
+            }
+        });
+        RemotePatch remote = probe(PackageKind.Patch, state, pointer);
+        if (remote.mStatus == 404 && shouldPatchApkBundle(state)) {
+            Log.d(RNAirLiteModule.Tag, "No patch for the APK found. Try the base package.");
+            markApkPatchUnavailable();
+            return checkForUpdateInternal(pointer);
+        }
+
+        boolean downloadBase = false;
+        RNAirFolder.PatchScheme current = state.getCurrentJSBundle();
+        RemotePatch patch = remote;
+        RemotePatch base = null;
+        if (current != null) {
+            base = probe(PackageKind.Base, state, pointer);
+            if (base.mError == null) {
+                downloadBase = mPlanner.shouldDownloadBase(
+                        remote.mError == null ? remote.mLength : -1, base.mLength,
+                        getDiffBaseLength(current));
+                if (downloadBase) remote = base;
+            }
+        }
+
+        if (remote.mError != null) return remote.mError;
+
+        // The other package is tried if the one planned couldn't be installed on this device.
+        boolean patchApkBundle = shouldPatchApkBundle(state);
+        RNAirPreflight.Plan plan = (current != null && !downloadBase) || patchApkBundle ?
+                RNAirPreflight.Plan.Patch : RNAirPreflight.Plan.Base;
+        RNAirPreflight preflight = preflight(plan, remote.mLength, state);
+        if (!preflight.isFeasible() && (current != null || patchApkBundle)) {
+            RemotePatch other = downloadBase ? patch : base;
+            if (other == null) other = probe(PackageKind.Base, state, pointer);
+            RNAirPreflight.Plan otherPlan = plan == RNAirPreflight.Plan.Patch ?
+                    RNAirPreflight.Plan.Base : RNAirPreflight.Plan.Patch;
+            RNAirPreflight alternative = other.mError != null ? null :
+                    preflight(otherPlan, other.mLength, state);
+            if (alternative != null && alternative.isFeasible()) {
+                Log.i(RNAirLiteModule.Tag, "Switch to the " + otherPlan + " package since " +
+                        preflight.getError());
+                if (patchApkBundle) {
+                    markApkPatchUnavailable();
+                } else {
+                    downloadBase = !downloadBase;
+                }
+
+                remote = other;
+                preflight = alternative;
+            }
+        }
+
+        mPreflight = preflight;
+        Log.v(RNAirLiteModule.Tag, "Preflight: " + preflight);
+        final int remoteVersion = remote.mVersion;
+        final boolean finalDownloadBase = downloadBase;
+        transit(new Transition() {
+            @Override
+            public RNAirPatchState apply(RNAirPatchState state) {
+                return state.withRemoteVersion(remoteVersion, finalDownloadBase);
+            }
+        });
+        Log.v(RNAirLiteModule.Tag, "The newest version is " + remoteVersion);
+        return null;
+    }
+
+    /**
+     * The estimate of the package to download last made by checkForUpdate or downloadPatches, or
+     * null if neither has found a package.
+     */
+    public @Nullable RNAirPreflight getPreflight() {
+        return mPreflight;
+    }
+
+    private RNAirPreflight preflight(RNAirPreflight.Plan plan, long length,
+                                     RNAirPatchState state) {
+        RNAirFolder.PatchScheme current = state.getCurrentJSBundle();
+        long baseLength = -1;
+        if (current != null) {
+            if (plan != RNAirPreflight.Plan.Base) baseLength = getDiffBaseLength(current);
+        } else if (plan == RNAirPreflight.Plan.Patch) {
+            baseLength = getApkBundleLength();
+        }
+
+        return RNAirPreflight.estimate(mApplication, mFolderManager.getTempPatchFolder(), plan,
+                length, baseLength, mPatchEngine instanceof RNAirNativePatchEngine);
+    }
+
+    private RNAirPatchState transit(Transition transition) {
+        while (true) {
+            RNAirPatchState current = mState.get();
+            RNAirPatchState next = transition.apply(current);
+            if (mState.compareAndSet(current, next)) return next;
+        }
+    }
+
+    // Checking, downloading and installing are exclusive since they share the temporary folder.
+    private @Nullable String enter(final RNAirPatchState.Phase phase) {
+        while (true) {
+            RNAirPatchState current = mState.get();
+            if (current.getPhase() != RNAirPatchState.Phase.Idle) {
+                String error = "Fail to start " + phase + " while " + current.getPhase();
+                Log.w(RNAirLiteModule.Tag, error);
+                return error;
+            }
+
+            if (mState.compareAndSet(current, current.withPhase(phase))) return null;
+        }
+    }
+
+    private void leave(final RNAirPatchState.Phase phase) {
+        transit(new Transition() {
+            @Override
+            public RNAirPatchState apply(RNAirPatchState state) {
+                Assert.assertTrue(state.getPhase() == phase);
+                return state.withPhase(RNAirPatchState.Phase.Idle);
+            }
+        });
+    }
+
+    private void markApkPatchUnavailable() {
+        transit(new Transition() {
+            @Override
+            public RNAirPatchState apply(RNAirPatchState state) {
+                return state.withApkPatchUnavailable();
+            }
+        });
+    }
+
+    public List<String> getUpdateDecisions() {
+        return mPlanner.getDecisions();
+    }
+
+    private static class RemotePatch {
+        int mStatus = 0;
+        @Nullable String mError;
+        int mVersion = 0;
+        long mLength = -1;
+    }
+
+    private RemotePatch probe(PackageKind kind, RNAirPatchState state,
+                              @Nullable RNAirPointerManifest pointer) {
+        if (pointer == null) return probeRemotePatch(resolveURI(kind, state, null));
+
+        // The pointer manifest tells versions and sizes without touching packages.
+        RemotePatch remote = new RemotePatch();
+        RNAirPointerManifest.Entry entry = getPointerEntry(kind, state, pointer);
+        if (entry == null) {
+            remote.mStatus = 404;
+            remote.mError = "No " + kind + " package found in the pointer manifest";
+            Log.d(RNAirLiteModule.Tag, remote.mError);
+            return remote;
+        }
+
+        remote.mStatus = 206;
+        remote.mVersion = pointer.getVersion();
+        remote.mLength = entry.getSize();
+        return remote;
+    }
+
+    private RemotePatch probeRemotePatch(String uri) {
+        RemotePatch remote = new RemotePatch();
         InputStream is = null;
-        BufferedInputStream ois = null;
         HttpURLConnection conn = null;
 
         try {
-            URL url = new URL(getPatchURI(mUpdateURI, mVersion));
+            URL url = new URL(uri);
             Log.d(RNAirLiteModule.Tag, ">>" + url);
             conn = (HttpURLConnection) url.openConnection();
             conn.setReadTimeout(mTimeoutInMs);
             conn.setConnectTimeout(mTimeoutInMs);
             conn.setRequestProperty("Range", "bytes=" + RNAirPatchMeta.getVersionByteRange());
             conn.connect();
-            int responseCode = conn.getResponseCode();
-            Log.v(RNAirLiteModule.Tag, "Got a HTTP status " + responseCode);
-            if (responseCode != 206) {
-                String error = "Got a HTTP status " + responseCode +
+            remote.mStatus = conn.getResponseCode();
+            Log.v(RNAirLiteModule.Tag, "Got a HTTP status " + remote.mStatus);
+            if (remote.mStatus != 206) {
+                remote.mError = "Got a HTTP status " + remote.mStatus +
                         " when patches had been downloaded";
-                Log.d(RNAirLiteModule.Tag, error);
-                return error;
+                Log.d(RNAirLiteModule.Tag, remote.mError);
+                return remote;
             }
 
+            remote.mLength = parseTotalLength(conn.getHeaderField("Content-Range"));
             is = conn.getInputStream();
             byte[] data = RNAirPatchMeta.createVersionBuffer();
             int bytesRead = is.read(data);
             if (bytesRead != data.length) {
-                String error = "Server returned only " + bytesRead + " bytes";
-                Log.e(RNAirLiteModule.Tag, error);
-                return error;
+                remote.mError = "Server returned only " + bytesRead + " bytes";
+                Log.e(RNAirLiteModule.Tag, remote.mError);
+                return remote;
             }
 
-            mRemoteVersion = ByteBuffer.wrap(data).getInt();
-            Log.v(RNAirLiteModule.Tag, "The newest version is " + mRemoteVersion);
-            return null;
+            remote.mVersion = ByteBuffer.wrap(data).getInt();
+            return remote;
         } catch (MalformedURLException e) {
             e.printStackTrace();
-            return e.toString();
+            remote.mError = e.toString();
+            return remote;
         } catch (IOException e) {
             e.printStackTrace();
-            return e.toString();
+            remote.mError = e.toString();
+            return remote;
         } finally {
             try {
                 if (conn != null) conn.disconnect();
                 if (is != null) is.close();
-                if (ois != null) ois.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    // Content-Range looks like "bytes 1-4/1234". The total length may be "*" if unknown.
+    private static long parseTotalLength(@Nullable String contentRange) {
+        if (contentRange == null) return -1;
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) return -1;
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     public String downloadPatches(RNAirLiteModule.ProgressUpdater progress) {
         if (mUpdateURI == null) {
             return "An URI where patches download from is required.";
         }
 
-        mFolderManager.createTempWritingFolder();
-        RNAirFolder.PatchScheme ps = mFolderManager.getTempPatchSchema();
+        String error = enter(RNAirPatchState.Phase.Downloading);
+        if (error != null) return error;
+        RNAirProcessCoordinator.Lock lock = null;
+        try {
+            tune();
+            lock = mCoordinator.lockDownload();
+            return downloadPatchesInternal(progress);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return e.toString();
+        } finally {
+            if (lock != null) lock.release();
+            leave(RNAirPatchState.Phase.Downloading);
+        }
+    }
+
+    private String downloadPatchesInternal(RNAirLiteModule.ProgressUpdater progress) {
+        // The temporary folder holds the generation pending, which a download would wipe out.
+        if (hasPendingPatch()) return PendingPatchError;
+
+        RNAirPatchState state = mState.get();
+        final RNAirPatchMeta downloaded = getCompleteDownload(state);
+        if (downloaded != null) {
+            Log.v(RNAirLiteModule.Tag, "Reuse the patch downloaded by another process which " +
+                    "version is " + downloaded.getVersion());
+            transit(new Transition() {
+                @Override
+                public RNAirPatchState apply(RNAirPatchState state) {
+                    return state.withRemoteVersion(downloaded.getVersion(),
+                            state.shouldDownloadBase());
+                }
+            });
+            return null;
+        }
+
+        mFolderManager.createStagingWritingFolder();
+        RNAirFolder.PatchScheme ps = mFolderManager.getStagingPatchSchema();
         InputStream is = null;
         OutputStream dataOut = null;
 
         try {
-            URL url = new URL(getPatchURI(mUpdateURI, mVersion));
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setReadTimeout(mTimeoutInMs);
-            conn.setConnectTimeout(mTimeoutInMs);
-            conn.connect();
-            int responseCode = conn.getResponseCode();
+            RNAirPointerManifest pointer = null;
+            if (mContentAddressed) {
+                pointer = mPointer;
+                if (pointer == null) {
+                    pointer = RNAirPointerManifest.fetch(mUpdateURI, mTimeoutInMs);
+                    mPointer = pointer;
+                }
+            }
+
+            boolean patchApkBundle = shouldPatchApkBundle(state);
+            boolean downloadBase = state.getCurrentJSBundle() != null &&
+                    state.shouldDownloadBase();
+            long startedAt = SystemClock.elapsedRealtime();
+            boolean tryModuleDelta = !patchApkBundle && !downloadBase &&
+                    state.getCurrentJSBundle() != null;
+            String deltaURI = tryModuleDelta ?
+                    resolveURI(PackageKind.ModuleDelta, state, pointer) : null;
+            String patchURI = resolveURI(PackageKind.Patch, state, pointer);
+            HttpURLConnection conn = null;
+            int responseCode = 404;
+            RNAirPreflight.Plan plan = RNAirPreflight.Plan.ModuleDelta;
+            if (deltaURI != null) {
+                conn = connect(deltaURI);
+                responseCode = conn.getResponseCode();
+            }
+
+            if (responseCode == 404 && patchURI != null) {
+                if (conn != null) {
+                    Log.d(RNAirLiteModule.Tag, "No module delta found. Try the binary patch.");
+                    conn.disconnect();
+                }
+
+                conn = connect(patchURI);
+                responseCode = conn.getResponseCode();
+                plan = patchApkBundle || tryModuleDelta ? RNAirPreflight.Plan.Patch :
+                        RNAirPreflight.Plan.Base;
+            }
+
+            if (responseCode == 404 && patchApkBundle) {
+                Log.d(RNAirLiteModule.Tag, "No patch for the APK found. Try the base package.");
+                markApkPatchUnavailable();
+                if (conn != null) conn.disconnect();
+                return downloadPatchesInternal(progress);
+            }
+
             if (responseCode != 200) {
                 String error = "Got a HTTP status " + responseCode +
                         " when patches had been downloaded";
@@ -180,7 +835,28 @@ public class RNAirPatchManager {
                 return error;
             }
 
+            // Only headers have been received, so nothing is spent on a package never installed.
+            RNAirPreflight preflight = preflight(plan, conn.getContentLength(), state);
+            mPreflight = preflight;
+            if (!preflight.isFeasible()) {
+                conn.disconnect();
+                String error = preflight.getError();
+                Log.w(RNAirLiteModule.Tag, error);
+                return error;
+            }
+
+            // Objects are named by their hashes, which are verified once downloaded against the
+            // manifest rather than the URL, which may be a signed one redirected to.
+            MessageDigest objectDigest = null;
+            RNAirPointerManifest.Entry objectEntry = pointer == null ? null : getPointerEntry(
+                    plan == RNAirPreflight.Plan.ModuleDelta ? PackageKind.ModuleDelta :
+                            PackageKind.Patch, state, pointer);
             is = conn.getInputStream();
+            if (objectEntry != null) {
+                objectDigest = RNAirIntegrityIndex.createDigest();
+                is = new DigestInputStream(is, objectDigest);
+            }
+
             int total = conn.getContentLength();
             byte meta[] = RNAirPatchMeta.createMetaBuffer();
             if (is.read(meta) != meta.length) {
@@ -194,8 +870,8 @@ public class RNAirPatchManager {
             String result = patchMeta.verify();
             if (result != null) return result;
 
-            int patchVersion = patchMeta.getVersion();
-            if (patchVersion <= mVersion) {
+            final int patchVersion = patchMeta.getVersion();
+            if (patchVersion <= state.getVersion()) {
                 String error = "The patch downloaded is not a new patch which version is "
                         + patchVersion;
                 Log.e(RNAirLiteModule.Tag, error);
@@ -208,20 +884,78 @@ public class RNAirPatchManager {
             progress.update(meta.length, total);
 
             dataOut = new FileOutputStream(ps.getPatchFile());
+            MessageDigest patchDigest = mProfile.getVerification() ==
+                    RNAirDeviceProfile.Verification.WhileDownloading ?
+                    patchMeta.createPatchDigest() : null;
 
-            byte data[] = new byte[ChunkSize];
+            byte data[] = new byte[mProfile.getChunkSize()];
             int count = 0;
             int offset = 0;
+            RNAirDownloadThrottle throttle = mDownloadThrottle;
+            if (throttle != null) throttle.begin();
 
-            while ((count = is.read(data)) != -1) {
+            while ((count = is.read(data, 0, throttle == null ? data.length :
+                    Math.min(data.length, throttle.getBurstBytes()))) != -1) {
                 offset += count;
                 progress.update(offset + meta.length, total);
                 dataOut.write(data, 0, count);
+                if (patchDigest != null) patchDigest.update(data, 0, count);
+                if (throttle != null) throttle.onBytesRead(count);
             }
 
             dataOut.flush();
-            mRemoteVersion = patchVersion;
-            Log.v(RNAirLiteModule.Tag, "The version of patch downloaded is " + mRemoteVersion);
+            if (patchDigest != null) {
+                result = patchMeta.verifyPatchDigest(patchDigest);
+                if (result != null) return result;
+                if (!ps.getVerifiedMarkerFile().createNewFile()) {
+                    String error = "Fail to create " + ps.getVerifiedMarkerFile().getAbsolutePath();
+                    Log.e(RNAirLiteModule.Tag, error);
+                    return error;
+                }
+            }
+
+            if (objectDigest != null) {
+                String hash = RNAirIntegrityIndex.toHex(objectDigest.digest());
+                if (!objectEntry.getHash().equals(hash)) {
+                    String error = "The hash of " + conn.getURL() +
+                            " doesn't match the pointer manifest";
+                    Log.e(RNAirLiteModule.Tag, error);
+                    return error;
+                }
+            }
+
+            mPlanner.recordDownload(offset + meta.length, SystemClock.elapsedRealtime() - startedAt);
+            if (downloadBase && !ps.getFullBaseMarkerFile().createNewFile()) {
+                String error = "Fail to create " + ps.getFullBaseMarkerFile().getAbsolutePath();
+                Log.e(RNAirLiteModule.Tag, error);
+                return error;
+            }
+
+            if (patchApkBundle && !ps.getApkBaseMarkerFile().createNewFile()) {
+                String error = "Fail to create " + ps.getApkBaseMarkerFile().getAbsolutePath();
+                Log.e(RNAirLiteModule.Tag, error);
+                return error;
+            }
+
+            if (!ps.getCompleteMarkerFile().createNewFile()) {
+                String error = "Fail to create " + ps.getCompleteMarkerFile().getAbsolutePath();
+                Log.e(RNAirLiteModule.Tag, error);
+                return error;
+            }
+
+            dataOut.close();
+            dataOut = null;
+            result = commitDownload(ps);
+            if (result != null) return result;
+
+            final boolean finalDownloadBase = downloadBase;
+            transit(new Transition() {
+                @Override
+                public RNAirPatchState apply(RNAirPatchState state) {
+                    return state.withRemoteVersion(patchVersion, finalDownloadBase);
+                }
+            });
+            Log.v(RNAirLiteModule.Tag, "The version of patch downloaded is " + patchVersion);
             return null;
         } catch (MalformedURLException e) {
             e.printStackTrace();
@@ -229,6 +963,12 @@ public class RNAirPatchManager {
         } catch (IOException e) {
             e.printStackTrace();
             return e.toString();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return e.toString();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return e.toString();
         } finally {
             try {
                 if (is != null) is.close();
@@ -240,6 +980,112 @@ public class RNAirPatchManager {
     }
 
     public String installPatch() {
+        return installPatch(null, false);
+    }
+
+    /**
+     * @param throttle slows the install down and pauses it if it is not null.
+     * @param deferActivation leaves the patch installed pending. It is activated in the next
+     *                        cold start or by activatePendingPatch.
+     */
+    public String installPatch(@Nullable RNAirInstallThrottle throttle, boolean deferActivation) {
+        String error = enter(RNAirPatchState.Phase.Installing);
+        if (error != null) return error;
+        RNAirProcessCoordinator.Lock lock = null;
+        try {
+            tune();
+            // A pause before the install starts doesn't keep other processes waiting for the lock.
+            if (throttle != null) {
+                throttle.begin();
+                throttle.waitIfPaused();
+            }
+
+            lock = mCoordinator.lock();
+            if (hasPendingPatch()) return PendingPatchError;
+            if (isInstalledByOthers()) return null;
+            return installPatchInternal(throttle, deferActivation);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return e.toString();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return e.toString();
+        } finally {
+            if (lock != null) lock.release();
+            leave(RNAirPatchState.Phase.Installing);
+        }
+    }
+
+    // Holds the update lock only to replace the temporary folder with the staging one.
+    private String commitDownload(RNAirFolder.PatchScheme staging) throws IOException {
+        RNAirProcessCoordinator.Lock lock = mCoordinator.lock();
+        try {
+            if (hasPendingPatch()) return PendingPatchError;
+            RNAirFS.deletePatch(mFolderManager.getTempPatchFolder());
+            File temp = mFolderManager.getTempPatchSchema().getDataFolder();
+            if (!staging.getDataFolder().renameTo(temp)) {
+                String error = "Fail to move " + staging.getDataFolder().getAbsolutePath() +
+                        " to " + temp.getAbsolutePath();
+                Log.e(RNAirLiteModule.Tag, error);
+                return error;
+            }
+
+            return null;
+        } finally {
+            lock.release();
+        }
+    }
+
+    // The patch downloaded and not installed yet, which could be shared by all processes.
+    private @Nullable RNAirPatchMeta getCompleteDownload(RNAirPatchState state) {
+        RNAirFolder.PatchScheme ps = mFolderManager.getTempPatchSchema();
+        if (!ps.getCompleteMarkerFile().exists() || ps.getPendingMarkerFile().exists()) {
+            return null;
+        }
+
+        RNAirPatchMeta meta = loadMeta(ps.getMetaFile());
+        if (meta == null || meta.getVersion() <= state.getVersion()) return null;
+        return meta;
+    }
+
+    private boolean isInstalledByOthers() {
+        RNAirFolder.PatchScheme ps = mFolderManager.getTempPatchSchema();
+        int remoteVersion = mState.get().getRemoteVersion();
+        if (ps.getDataFolder().isDirectory() || remoteVersion <= 0) return false;
+
+        RNAirPatchState state = transit(calcAvailablePatch());
+        if (state.getVersion() < remoteVersion) return false;
+        Log.v(RNAirLiteModule.Tag, "The patch has been installed by another process.");
+        return true;
+    }
+
+    public boolean hasPendingPatch() {
+        return mFolderManager.getTempPatchSchema().getPendingMarkerFile().exists();
+    }
+
+    public boolean activatePendingPatch() {
+        if (enter(RNAirPatchState.Phase.Installing) != null) return false;
+        RNAirProcessCoordinator.Lock lock = null;
+        try {
+            lock = mCoordinator.lock();
+            if (!hasPendingPatch()) return false;
+            moveTempToNewest();
+            RNAirPatchState state = transit(calcAvailablePatch());
+            mCoordinator.notifyGenerationChanged();
+            if (state.getCurrentJSBundle() != null) warmUp(state.getCurrentJSBundle());
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (lock != null) lock.release();
+            leave(RNAirPatchState.Phase.Installing);
+        }
+    }
+
+    private String installPatchInternal(@Nullable RNAirInstallThrottle throttle,
+                                        boolean deferActivation) {
+        RNAirFolder.PatchScheme current = mState.get().getCurrentJSBundle();
         RNAirFolder.PatchScheme ps = mFolderManager.getTempPatchSchema();
         File patchDir = ps.getDataFolder();
         if (!patchDir.isDirectory()) return "No patch found";
@@ -251,13 +1097,14 @@ public class RNAirPatchManager {
         if (!patchData.exists()) return "No patch data file found";
 
         File assets = null;
-        if (mCurrentJSBundle != null) {
-            assets = mCurrentJSBundle.getAssetsFile();
-            if (!assets.exists()) return "No assets file found at " + assets.getAbsolutePath();
+        if (current != null) {
+            assets = current.getAssetsFile();
+            if (!assets.exists() && !current.getAssetsSkeletonFile().exists()) {
+                return "No assets file found at " + assets.getAbsolutePath();
+            }
         }
 
-        InputStream metaStream = null, patchStream = null, curAssetsStream = null;
-        OutputStream assetsStream = null;
+        InputStream metaStream = null;
 
         try {
             metaStream = new FileInputStream(patchMetaFile);
@@ -272,46 +1119,80 @@ public class RNAirPatchManager {
             String result = patchMeta.verify();
             if (result != null) return result;
 
-            patchStream = new FileInputStream(patchData);
-            ByteBuffer dataBytes = ByteBuffer.allocateDirect((int)patchData.length());
-            if (patchStream.read(dataBytes.array(), dataBytes.arrayOffset(),
-                    (int)patchData.length()) != patchData.length()) {
-                String error = "Fail to read patch data file.";
-                Log.w(RNAirLiteModule.Tag, error);
+            if (throttle != null) throttle.waitIfPaused();
+            ByteBuffer dataBytes = RNAirFS.readFile(patchData);
+            if (ps.getVerifiedMarkerFile().exists()) {
+                Log.v(RNAirLiteModule.Tag, "The patch has been verified while downloaded.");
+            } else {
+                result = patchMeta.verifyPatch(dataBytes);
+                if (result != null) return result;
+            }
+
+            RNAirPatchEngine engine = mPatchEngine;
+            long startedAt = SystemClock.elapsedRealtime();
+            ByteBuffer decompressed = engine.decompress(dataBytes);
+            if (decompressed == null) {
+                String error = "Fail to decompress the patch.";
+                Log.e(RNAirLiteModule.Tag, error);
                 return error;
             }
 
-            result = patchMeta.verifyPatch(dataBytes);
-            if (result != null) return result;
+            mPlanner.recordDecompress(dataBytes.capacity(), SystemClock.elapsedRealtime() - startedAt);
+            if (throttle != null) throttle.waitIfPaused();
+            File newAssets = ps.getAssetsFile();
+            if (patchMeta.isModuleDelta()) {
+                if (current == null || ps.getApkBaseMarkerFile().exists() ||
+                        ps.getFullBaseMarkerFile().exists()) {
+                    return "A module delta could only be applied to an installed patch";
+                }
 
-            ByteBuffer assetsTar;
-            if (mCurrentJSBundle == null) {
-                Log.v(RNAirLiteModule.Tag, "The whole assets will be extracting...");
-                assetsTar = this.decompress(dataBytes);
+                startedAt = SystemClock.elapsedRealtime();
+                result = RNAirModuleDelta.apply(decompressed, loadDiffBase(current), newAssets,
+                        throttle);
+                if (result != null) return result;
+                mPlanner.recordPatch(newAssets.length(), SystemClock.elapsedRealtime() - startedAt);
             } else {
-                ByteBuffer patch = this.decompress(dataBytes);
-                curAssetsStream = new FileInputStream(assets);
-                byte[] assetsData = new byte[(int) assets.length()];
-                if (curAssetsStream.read(assetsData) != assetsData.length) {
-                    curAssetsStream.close();
-                    String error = "Local assets file is corrupted.";
+                result = writeAssetsTar(ps, current, engine, decompressed, newAssets, throttle);
+                if (result != null) return result;
+            }
+
+            RNAirIntegrityIndex index = new RNAirIntegrityIndex(patchDir);
+            List<String> files = new ArrayList<>();
+            extractTar(newAssets, patchDir, index, files, throttle);
+            result = index.save(ps.getIntegrityIndexFile());
+            if (result != null) return result;
+
+            if (mCompactStorage) compact(ps, files);
+
+            if (deferActivation) {
+                // The marker is created only once the generation is durable, and synced itself,
+                // so a power loss never leaves it on top of files not written yet.
+                result = mDurability.syncTree(ps.getPatchFolder());
+                if (result != null) return result;
+
+                if (!ps.getPendingMarkerFile().createNewFile()) {
+                    String error = "Fail to create " + ps.getPendingMarkerFile().getAbsolutePath();
                     Log.e(RNAirLiteModule.Tag, error);
                     return error;
                 }
 
-                curAssetsStream.close();
+                result = mDurability.syncDirectory(ps.getPendingMarkerFile().getParentFile());
+                if (result != null) return result;
 
-                assetsTar = this.patch(ByteBuffer.wrap(assetsData), patch);
+                final int version = patchMeta.getVersion();
+                transit(new Transition() {
+                    @Override
+                    public RNAirPatchState apply(RNAirPatchState state) {
+                        return state.withRemoteVersion(version, false);
+                    }
+                });
+                return null;
             }
 
-            File newAssets = ps.getAssetsFile();
-            assetsStream = new FileOutputStream(newAssets);
-            byte[] assetsTarData = new byte[assetsTar.remaining()];
-            assetsTar.get(assetsTarData);
-            assetsStream.write(assetsTarData);
-            extractTar(newAssets, patchDir);
-            applyNewPatch();
-            mRemoteVersion = patchMeta.getVersion();
+            result = mDurability.syncTree(ps.getPatchFolder());
+            if (result != null) return result;
+
+            applyNewPatch(patchMeta.getVersion());
 
             return null;
         } catch (FileNotFoundException e) {
@@ -323,36 +1204,146 @@ public class RNAirPatchManager {
         } catch (ArchiveException e) {
             e.printStackTrace();
             return e.toString();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return e.toString();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return e.toString();
         } finally {
             try {
                 if (metaStream != null) {
                     metaStream.close();
                 }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-                if (patchStream != null) {
-                    patchStream.close();
-                }
+    private String writeAssetsTar(RNAirFolder.PatchScheme ps,
+                                  @Nullable RNAirFolder.PatchScheme current,
+                                  RNAirPatchEngine engine, ByteBuffer decompressed, File newAssets,
+                                  @Nullable RNAirInstallThrottle throttle)
+            throws IOException, InterruptedException {
+        ByteBuffer assetsTar;
+        if (current == null && ps.getApkBaseMarkerFile().exists()) {
+            Log.v(RNAirLiteModule.Tag, "Patching the JS bundle embedded in APK...");
+            assetsTar = engine.patch(loadApkBundle(), decompressed);
+        } else if (current == null || ps.getFullBaseMarkerFile().exists()) {
+            Log.v(RNAirLiteModule.Tag, "The whole assets will be extracting...");
+            assetsTar = decompressed;
+        } else {
+            long startedAt = SystemClock.elapsedRealtime();
+            assetsTar = engine.patch(loadDiffBase(current), decompressed);
+            if (assetsTar != null) {
+                mPlanner.recordPatch(assetsTar.remaining(),
+                        SystemClock.elapsedRealtime() - startedAt);
+            }
+        }
 
-                if (curAssetsStream != null) {
-                    curAssetsStream.close();
-                }
+        if (assetsTar == null) {
+            String error = "Fail to apply the patch.";
+            Log.e(RNAirLiteModule.Tag, error);
+            return error;
+        }
 
-                if (assetsStream != null) assetsStream.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+        FileOutputStream assetsStream = new FileOutputStream(newAssets);
+        try {
+            byte[] chunk = new byte[mProfile.getChunkSize()];
+            while (assetsTar.hasRemaining()) {
+                int count = Math.min(chunk.length, assetsTar.remaining());
+                assetsTar.get(chunk, 0, count);
+                assetsStream.write(chunk, 0, count);
+                if (throttle != null) throttle.onBytesWritten(count);
+            }
+
+            mDurability.onFileWritten(assetsStream, newAssets);
+        } finally {
+            assetsStream.close();
+        }
+
+        return null;
+    }
+
+    private ByteBuffer loadDiffBase(RNAirFolder.PatchScheme scheme) throws IOException {
+        File assets = scheme.getAssetsFile();
+        if (assets.exists()) return RNAirFS.readFile(assets);
+        return RNAirTarSkeleton.rebuild(scheme.getAssetsSkeletonFile(), scheme.getDataFolder());
+    }
+
+    private long getDiffBaseLength(RNAirFolder.PatchScheme scheme) {
+        File assets = scheme.getAssetsFile();
+        if (assets.exists()) return assets.length();
+        return RNAirTarSkeleton.getTarLength(scheme.getAssetsSkeletonFile());
+    }
+
+    // Failures leave the generation as it is, which is still valid.
+    private void compact(RNAirFolder.PatchScheme ps, List<String> files) {
+        File assets = ps.getAssetsFile();
+        File skeleton = ps.getAssetsSkeletonFile();
+        String result = RNAirTarSkeleton.create(assets, ps.getDataFolder(), files, skeleton);
+        if (result != null) {
+            Log.w(RNAirLiteModule.Tag, "Fail to compact " + assets.getAbsolutePath() + ":" +
+                    result);
+            skeleton.delete();
+        } else if (!assets.delete()) {
+            Log.w(RNAirLiteModule.Tag, "Fail to delete " + assets.getAbsolutePath());
+        }
+
+        if (!ps.getPatchFile().delete()) {
+            Log.w(RNAirLiteModule.Tag, "Fail to delete " + ps.getPatchFile().getAbsolutePath());
+        }
+    }
+
+    // Returns -1 if it is unknown, e.g. the bundle is compressed in APK.
+    private long getApkBundleLength() {
+        if (mBundleAssetName == null) return -1;
+        try {
+            AssetFileDescriptor fd = mApplication.getAssets().openFd(mBundleAssetName);
+            try {
+                return fd.getLength();
+            } finally {
+                fd.close();
             }
+        } catch (IOException e) {
+            return -1;
         }
     }
 
-    private void applyNewPatch() {
-        RNAirFolder.PatchScheme newest = mFolderManager.getNewestPatchSchema();
-        File newestPatchFolder = newest.getPatchFolder();
+    private ByteBuffer loadApkBundle() throws IOException {
+        return RNAirFS.readAsset(mApplication.getAssets(), mBundleAssetName,
+                mProfile.getChunkSize());
+    }
+
+    private void moveTempToNewest() {
+        RNAirFolder.PatchScheme temp = mFolderManager.getTempPatchSchema();
+        temp.getPendingMarkerFile().delete();
+        File newestPatchFolder = mFolderManager.getNewestPatchFolder();
         RNAirFS.move(newestPatchFolder, mFolderManager.getStablePatchFolder());
-        RNAirFS.move(mFolderManager.getTempPatchFolder(), newestPatchFolder);
-        mCurrentJSBundle = newest;
+        RNAirFS.move(temp.getPatchFolder(), newestPatchFolder);
+        String result = mDurability.syncDirectory(newestPatchFolder.getParentFile());
+        if (result != null) Log.w(RNAirLiteModule.Tag, "Fail to sync the switch: " + result);
+    }
+
+    private void applyNewPatch(final int version) {
+        final RNAirFolder.PatchScheme newest = mFolderManager.getNewestPatchSchema();
+        moveTempToNewest();
+        transit(new Transition() {
+            @Override
+            public RNAirPatchState apply(RNAirPatchState state) {
+                return state.withCurrentJSBundle(newest, version).withRemoteVersion(version, false);
+            }
+        });
+        mCoordinator.notifyGenerationChanged();
+        warmUp(newest);
+        InstallListener listener = mInstallListener;
+        if (listener != null) listener.onPatchInstalled(version);
     }
 
-    private void extractTar(File inputFile, File outputDir) throws IOException, ArchiveException {
+    private void extractTar(File inputFile, File outputDir, RNAirIntegrityIndex index,
+                            List<String> files, @Nullable RNAirInstallThrottle throttle)
+            throws IOException, ArchiveException, NoSuchAlgorithmException, InterruptedException {
         final InputStream is = new FileInputStream(inputFile);
         final TarArchiveInputStream debInputStream =
                 (TarArchiveInputStream) new ArchiveStreamFactory().createArchiveInputStream("tar", is);
@@ -370,23 +1361,46 @@ public class RNAirPatchManager {
                 }
             } else {
                 Log.d(RNAirLiteModule.Tag, String.format("Creating output file %s.", outputFile.getAbsolutePath()));
-                final OutputStream outputFileStream = new FileOutputStream(outputFile);
-                IOUtils.copy(debInputStream, outputFileStream);
+                final MessageDigest md = RNAirIntegrityIndex.createDigest();
+                final FileOutputStream fileStream = new FileOutputStream(outputFile);
+                final OutputStream outputFileStream = new DigestOutputStream(fileStream, md);
+                final byte[] chunk = new byte[mProfile.getChunkSize()];
+                int count;
+                while ((count = debInputStream.read(chunk)) != -1) {
+                    outputFileStream.write(chunk, 0, count);
+                    if (throttle != null) throttle.onBytesWritten(count);
+                }
+
+                mDurability.onFileWritten(fileStream, outputFile);
                 outputFileStream.close();
+                index.add(entry.getName(), md.digest());
+                if (entry.isFile() && entry.getSize() > 0) files.add(entry.getName());
             }
         }
         debInputStream.close();
     }
 
-    private void calcAvailablePatch() {
-        Assert.assertNull(mCurrentJSBundle);
-        mCurrentJSBundle = getPatchAvailable(mFolderManager.getNewestPatchSchema());
-        if (mCurrentJSBundle != null) return;
+    // Probes folders at once. The transition returned only publishes the result.
+    private Transition calcAvailablePatch() {
+        RNAirFolder.PatchScheme scheme = mFolderManager.getNewestPatchSchema();
+        RNAirPatchMeta meta = getPatchAvailable(scheme);
+        if (meta == null) {
+            scheme = mFolderManager.getStablePatchSchema();
+            meta = getPatchAvailable(scheme);
+        }
 
-        mCurrentJSBundle = getPatchAvailable(mFolderManager.getStablePatchSchema());
+        final RNAirFolder.PatchScheme available = meta == null ? null : scheme;
+        final int version = meta == null ? -1 : meta.getVersion();
+        return new Transition() {
+            @Override
+            public RNAirPatchState apply(RNAirPatchState state) {
+                return state.withCurrentJSBundle(available,
+                        available == null ? state.getVersion() : version);
+            }
+        };
     }
 
-    private @Nullable RNAirFolder.PatchScheme getPatchAvailable(RNAirFolder.PatchScheme patchScheme) {
+    private @Nullable RNAirPatchMeta getPatchAvailable(RNAirFolder.PatchScheme patchScheme) {
         // FIXME JS codes could decide to save patches in inner or external storage.
         File stablePatchDir = patchScheme.getDataFolder();
         if (!stablePatchDir.exists() || !stablePatchDir.isDirectory()) {
@@ -402,7 +1416,19 @@ public class RNAirPatchManager {
             return null;
         }
 
-        File metaFile = patchScheme.getMetaFile();
+        RNAirPatchMeta patchMeta = loadMeta(patchScheme.getMetaFile());
+        if (patchMeta == null) return null;
+
+        // Generations installed before the complete marker was written have no index either.
+        String result = RNAirIntegrityIndex.verify(patchScheme.getDataFolder(),
+                patchScheme.getIntegrityIndexFile(), patchScheme.getCompleteMarkerFile().exists(),
+                mCoordinator);
+        if (result != null) return null;
+
+        return patchMeta;
+    }
+
+    private @Nullable RNAirPatchMeta loadMeta(File metaFile) {
         if (!metaFile.exists()) {
             Log.w(RNAirLiteModule.Tag, metaFile.getAbsolutePath() + " does not found.");
             return null;
@@ -422,8 +1448,7 @@ public class RNAirPatchManager {
             String result = patchMeta.verify();
             if (result != null) return null;
 
-            mVersion = patchMeta.getVersion();
-            return patchScheme;
+            return patchMeta;
         } catch (FileNotFoundException e) {
             e.printStackTrace();
             return null;
@@ -439,9 +1464,78 @@ public class RNAirPatchManager {
         }
     }
 
-    private String getPatchURI(String uri, int version) {
+    private boolean shouldPatchApkBundle(RNAirPatchState state) {
+        return state.getCurrentJSBundle() == null && mBundleAssetName != null &&
+                !state.isApkPatchUnavailable() && mFolderManager.getAppVersionCode() > 0;
+    }
+
+    private String getPatchURI(String uri, RNAirPatchState state) {
+        if (!uri.endsWith("/")) uri += "/";
+        if (shouldPatchApkBundle(state)) {
+            // The bundle embedded in APK is the generation zero.
+            return uri + "android/apk/" + mFolderManager.getAppVersionCode() + "/patch";
+        }
+
+        if (state.getCurrentJSBundle() == null || state.shouldDownloadBase()) {
+            return getBaseURI(uri);
+        }
+
+        return uri + "android/" + state.getVersion() + "/patch";
+    }
+
+    // Returns null if the package is not published in the pointer manifest.
+    private @Nullable String resolveURI(PackageKind kind, RNAirPatchState state,
+                                        @Nullable RNAirPointerManifest pointer) {
+        if (pointer != null) {
+            RNAirPointerManifest.Entry entry = getPointerEntry(kind, state, pointer);
+            return entry == null ? null : RNAirPointerManifest.getObjectURI(mUpdateURI, entry);
+        }
+
+        switch (kind) {
+            case Base:
+                return getBaseURI(mUpdateURI);
+            case ModuleDelta:
+                return getModuleDeltaURI(mUpdateURI, state);
+            default:
+                return getPatchURI(mUpdateURI, state);
+        }
+    }
+
+    private @Nullable RNAirPointerManifest.Entry getPointerEntry(
+            PackageKind kind, RNAirPatchState state, RNAirPointerManifest pointer) {
+        switch (kind) {
+            case Base:
+                return pointer.getBase();
+            case ModuleDelta:
+                return pointer.getModuleDelta(state.getVersion());
+            default:
+                if (shouldPatchApkBundle(state)) {
+                    return pointer.getApkPatch(mFolderManager.getAppVersionCode());
+                }
+
+                if (state.getCurrentJSBundle() == null || state.shouldDownloadBase()) {
+                    return pointer.getBase();
+                }
+
+                return pointer.getPatch(state.getVersion());
+        }
+    }
+
+    private String getModuleDeltaURI(String uri, RNAirPatchState state) {
+        if (!uri.endsWith("/")) uri += "/";
+        return uri + "android/" + state.getVersion() + "/delta";
+    }
+
+    private HttpURLConnection connect(String uri) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(uri).openConnection();
+        conn.setReadTimeout(mTimeoutInMs);
+        conn.setConnectTimeout(mTimeoutInMs);
+        conn.connect();
+        return conn;
+    }
+
+    private String getBaseURI(String uri) {
         if (!uri.endsWith("/")) uri += "/";
-        if (mCurrentJSBundle == null) return uri + "android/newest/base";
-        return uri + "android/" + version + "/patch";
+        return uri + "android/newest/base";
     }
 }
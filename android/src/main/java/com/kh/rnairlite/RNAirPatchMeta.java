@@ -17,6 +17,7 @@ import java.util.Arrays;
 public class RNAirPatchMeta {
 
     private static final int PackVersoinSupported = 1;
+    private static final int PackVersionModuleDelta = 2;
     private static final int PatchHeaderLength = 64;
     private static final int PachVersionLength = 1;
     private static final int PatchVersionLength = 4;
@@ -39,7 +40,7 @@ public class RNAirPatchMeta {
         }
 
         int packVersion = mBytesBuf.get(0);
-        if (packVersion != PackVersoinSupported) {
+        if (packVersion != PackVersoinSupported && packVersion != PackVersionModuleDelta) {
             String error = "Unsupported pack version " + packVersion;
             Log.e(RNAirLiteModule.Tag, error);
             return error;
@@ -50,29 +51,44 @@ public class RNAirPatchMeta {
 
     public String verifyPatch(ByteBuffer patchBytes) {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(mBytes, 0, PachVersionLength + PatchVersionLength);
-            byte[] all0s = new byte[PatchHeaderLength - PachVersionLength - PatchVersionLength];
-            Arrays.fill(all0s, (byte) 0);
-            md.update(all0s);
-            md.update(patchBytes);
-            byte[] checksum = md.digest();
-            byte[] checksumInMeta = new byte[ChecksumLength];
-            mBytesBuf.position(PachVersionLength + PatchVersionLength);
-            mBytesBuf.get(checksumInMeta);
-            if (!Arrays.equals(checksum, checksumInMeta)) {
-                String error = "Fail to verify the checksum";
-                Log.e(RNAirLiteModule.Tag, error);
-                return error;
-            }
-
-            return null;
+            MessageDigest md = createPatchDigest();
+            md.update(patchBytes.duplicate());
+            return verifyPatchDigest(md);
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
             return e.toString();
         }
     }
 
+    // Returns a digest which has hashed the header, so the patch could be hashed while streamed.
+    public MessageDigest createPatchDigest() throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(mBytes, 0, PachVersionLength + PatchVersionLength);
+        byte[] all0s = new byte[PatchHeaderLength - PachVersionLength - PatchVersionLength];
+        Arrays.fill(all0s, (byte) 0);
+        md.update(all0s);
+        return md;
+    }
+
+    public String verifyPatchDigest(MessageDigest md) {
+        byte[] checksum = md.digest();
+        byte[] checksumInMeta = new byte[ChecksumLength];
+        mBytesBuf.position(PachVersionLength + PatchVersionLength);
+        mBytesBuf.get(checksumInMeta);
+        if (!Arrays.equals(checksum, checksumInMeta)) {
+            String error = "Fail to verify the checksum";
+            Log.e(RNAirLiteModule.Tag, error);
+            return error;
+        }
+
+        return null;
+    }
+
+    // The payload is a RNAirModuleDelta rather than a bsdiff patch or a whole tar.
+    public boolean isModuleDelta() {
+        return mBytesBuf.get(0) == PackVersionModuleDelta;
+    }
+
     public int getVersion() {
         return mBytesBuf.getInt(PachVersionLength);
     }
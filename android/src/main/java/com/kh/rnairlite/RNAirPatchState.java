@@ -0,0 +1,88 @@
+package com.kh.rnairlite;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Immutable snapshot of RNAirPatchManager. A new snapshot is published atomically on each state
+ * transition, so readers on any thread always see a consistent state without locking.
+ */
+public final class RNAirPatchState {
+    public enum Phase {
+        Idle,
+        Checking,
+        Downloading,
+        Installing,
+    }
+
+    private final Phase mPhase;
+    private final @Nullable RNAirFolder.PatchScheme mCurrentJSBundle;
+    private final int mVersion;
+    private final int mRemoteVersion;
+    private final boolean mDownloadBase;
+    private final boolean mApkPatchUnavailable;
+
+    private RNAirPatchState(Phase phase, @Nullable RNAirFolder.PatchScheme currentJSBundle,
+                            int version, int remoteVersion, boolean downloadBase,
+                            boolean apkPatchUnavailable) {
+        mPhase = phase;
+        mCurrentJSBundle = currentJSBundle;
+        mVersion = version;
+        mRemoteVersion = remoteVersion;
+        mDownloadBase = downloadBase;
+        mApkPatchUnavailable = apkPatchUnavailable;
+    }
+
+    public static RNAirPatchState initial() {
+        return new RNAirPatchState(Phase.Idle, null, 0, 0, false, false);
+    }
+
+    public Phase getPhase() {
+        return mPhase;
+    }
+
+    public @Nullable RNAirFolder.PatchScheme getCurrentJSBundle() {
+        return mCurrentJSBundle;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public int getRemoteVersion() {
+        return mRemoteVersion;
+    }
+
+    public boolean shouldDownloadBase() {
+        return mDownloadBase;
+    }
+
+    public boolean isApkPatchUnavailable() {
+        return mApkPatchUnavailable;
+    }
+
+    public RNAirPatchState withPhase(Phase phase) {
+        return new RNAirPatchState(phase, mCurrentJSBundle, mVersion, mRemoteVersion,
+                mDownloadBase, mApkPatchUnavailable);
+    }
+
+    public RNAirPatchState withCurrentJSBundle(@Nullable RNAirFolder.PatchScheme currentJSBundle,
+                                               int version) {
+        return new RNAirPatchState(mPhase, currentJSBundle, version, mRemoteVersion,
+                mDownloadBase, mApkPatchUnavailable);
+    }
+
+    public RNAirPatchState withVersion(int version) {
+        return new RNAirPatchState(mPhase, mCurrentJSBundle, version, mRemoteVersion,
+                mDownloadBase, mApkPatchUnavailable);
+    }
+
+    public RNAirPatchState withRemoteVersion(int remoteVersion, boolean downloadBase) {
+        return new RNAirPatchState(mPhase, mCurrentJSBundle, mVersion, remoteVersion,
+                downloadBase, mApkPatchUnavailable);
+    }
+
+    public RNAirPatchState withApkPatchUnavailable() {
+        return new RNAirPatchState(mPhase, mCurrentJSBundle, mVersion, mRemoteVersion,
+                mDownloadBase, true);
+    }
+}
@@ -0,0 +1,139 @@
+package com.kh.rnairlite;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A tiny manifest at android/manifest, which points to immutable packages named by their hashes
+ * at android/objects/<sha256>. Only the manifest changes on each release, so packages could be
+ * cached by CDN forever.
+ *
+ * The first line is the manifest version, followed by "version <newest version>", and a line for
+ * each package, i.e. "base <sha256> <size>", "patch <from version> <sha256> <size>",
+ * "delta <from version> <sha256> <size>" or "apk <version code> <sha256> <size>".
+ */
+public class RNAirPointerManifest {
+    private static final String ManifestVersion = "1";
+    private static final String ManifestPath = "android/manifest";
+    private static final String ObjectsPath = "android/objects/";
+
+    private int mVersion = -1;
+    private @Nullable Entry mBase;
+    private final Map<Integer, Entry> mPatches = new HashMap<>();
+    private final Map<Integer, Entry> mDeltas = new HashMap<>();
+    private final Map<Integer, Entry> mApkPatches = new HashMap<>();
+
+    public static class Entry {
+        final String mHash;
+        final int mSize;
+
+        Entry(String hash, int size) {
+            mHash = hash;
+            mSize = size;
+        }
+
+        public String getHash() {
+            return mHash;
+        }
+
+        public int getSize() {
+            return mSize;
+        }
+    }
+
+    private RNAirPointerManifest() {
+    }
+
+    public static RNAirPointerManifest fetch(String uri, int timeoutInMs) throws IOException {
+        if (!uri.endsWith("/")) uri += "/";
+        HttpURLConnection conn = (HttpURLConnection) new URL(uri + ManifestPath).openConnection();
+        conn.setReadTimeout(timeoutInMs);
+        conn.setConnectTimeout(timeoutInMs);
+        conn.setUseCaches(false);
+        BufferedReader reader = null;
+        try {
+            conn.connect();
+            int responseCode = conn.getResponseCode();
+            if (responseCode != 200) {
+                throw new IOException("Got a HTTP status " + responseCode +
+                        " when the pointer manifest had been fetched");
+            }
+
+            reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+            return parse(reader);
+        } finally {
+            if (reader != null) reader.close();
+            conn.disconnect();
+        }
+    }
+
+    private static RNAirPointerManifest parse(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (!ManifestVersion.equals(line)) {
+            throw new IOException("Unsupported pointer manifest version " + line);
+        }
+
+        RNAirPointerManifest manifest = new RNAirPointerManifest();
+        try {
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                String[] fields = line.split(" ");
+                if (fields[0].equals("version") && fields.length == 2) {
+                    manifest.mVersion = Integer.parseInt(fields[1]);
+                } else if (fields[0].equals("base") && fields.length == 3) {
+                    manifest.mBase = new Entry(fields[1], Integer.parseInt(fields[2]));
+                } else if (fields.length == 4) {
+                    Entry entry = new Entry(fields[2], Integer.parseInt(fields[3]));
+                    int from = Integer.parseInt(fields[1]);
+                    if (fields[0].equals("patch")) {
+                        manifest.mPatches.put(from, entry);
+                    } else if (fields[0].equals("delta")) {
+                        manifest.mDeltas.put(from, entry);
+                    } else if (fields[0].equals("apk")) {
+                        manifest.mApkPatches.put(from, entry);
+                    }
+                } else {
+                    Log.w(RNAirLiteModule.Tag, "Unknown line in the pointer manifest: " + line);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("The pointer manifest is corrupted: " + e);
+        }
+
+        if (manifest.mVersion < 0) throw new IOException("No version in the pointer manifest");
+        return manifest;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public @Nullable Entry getBase() {
+        return mBase;
+    }
+
+    public @Nullable Entry getPatch(int fromVersion) {
+        return mPatches.get(fromVersion);
+    }
+
+    public @Nullable Entry getModuleDelta(int fromVersion) {
+        return mDeltas.get(fromVersion);
+    }
+
+    public @Nullable Entry getApkPatch(int versionCode) {
+        return mApkPatches.get(versionCode);
+    }
+
+    public static String getObjectURI(String uri, Entry entry) {
+        if (!uri.endsWith("/")) uri += "/";
+        return uri + ObjectsPath + entry.mHash;
+    }
+}
@@ -0,0 +1,184 @@
+package com.kh.rnairlite;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Build;
+import android.os.StatFs;
+
+import java.io.File;
+
+/**
+ * Estimates peak disk and memory an install of a package needs before the package is downloaded,
+ * so devices short of either don't waste the download only to fail in installPatch.
+ *
+ * The length of the new assets.tar isn't known until the package is decompressed. It is assumed
+ * to be as large as the tar the package applies to, or ExpansionRatio times the package if there
+ * is none. Buffers read from files are direct ones, which are allocated in the Java heap, while
+ * buffers returned by the native engine live in native memory.
+ */
+public final class RNAirPreflight {
+    public enum Plan {
+        // The whole base package, which is decompressed and extracted.
+        Base,
+        // A bsdiff patch against the current assets.tar or the bundle in APK, applied in memory.
+        Patch,
+        // A module delta against the current assets.tar, written op by op.
+        ModuleDelta,
+    }
+
+    private static final long MB = 1024 * 1024;
+    private static final long ExpansionRatio = 4;
+    // Left free besides the estimate for the app itself and metadata of the file system.
+    private static final long DiskMargin = 16 * MB;
+    private static final long MemoryMargin = 8 * MB;
+
+    private final Plan mPlan;
+    private final long mDownloadBytes;
+    private final long mPeakDiskBytes;
+    private final long mPeakMemoryBytes;
+    private final long mPeakHeapBytes;
+    private final long mAvailableDiskBytes;
+    private final long mAvailableMemoryBytes;
+    private final long mAvailableHeapBytes;
+
+    private RNAirPreflight(Plan plan, long downloadBytes, long peakDiskBytes, long peakMemoryBytes,
+                           long peakHeapBytes, long availableDiskBytes,
+                           long availableMemoryBytes, long availableHeapBytes) {
+        mPlan = plan;
+        mDownloadBytes = downloadBytes;
+        mPeakDiskBytes = peakDiskBytes;
+        mPeakMemoryBytes = peakMemoryBytes;
+        mPeakHeapBytes = peakHeapBytes;
+        mAvailableDiskBytes = availableDiskBytes;
+        mAvailableMemoryBytes = availableMemoryBytes;
+        mAvailableHeapBytes = availableHeapBytes;
+    }
+
+    /**
+     * @param folder where the package is downloaded and installed.
+     * @param packageLength length of the package, or -1 if it is unknown.
+     * @param baseLength length of the tar or the bundle in APK the package applies to, or -1 if
+     *                   there is none or it is unknown.
+     * @param nativeEngine whether the package is decompressed and patched in native memory.
+     */
+    public static RNAirPreflight estimate(Context context, File folder, Plan plan,
+                                          long packageLength, long baseLength,
+                                          boolean nativeEngine) {
+        long availableDisk = getAvailableDisk(folder);
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        long availableMemory = memoryInfo.availMem - memoryInfo.threshold;
+        Runtime runtime = Runtime.getRuntime();
+        long availableHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+
+        if (packageLength < 0) {
+            return new RNAirPreflight(plan, -1, -1, -1, -1, availableDisk, availableMemory,
+                    availableHeap);
+        }
+
+        long base = Math.max(baseLength, 0);
+        long newTar = baseLength > 0 ? Math.max(baseLength, packageLength) :
+                packageLength * ExpansionRatio;
+
+        // The package read, the payload decompressed and, for bsdiff, the new tar patched.
+        long heap = packageLength;
+        long offHeap;
+        switch (plan) {
+            case Patch:
+                heap += base;
+                offHeap = 2 * newTar;
+                break;
+            case ModuleDelta:
+                heap += base;
+                offHeap = newTar;
+                break;
+            default:
+                offHeap = newTar;
+                break;
+        }
+
+        if (!nativeEngine) heap += offHeap;
+
+        // patch.data, assets.tar and files extracted from it.
+        long disk = packageLength + 2 * newTar;
+        return new RNAirPreflight(plan, packageLength, disk, heap + offHeap, heap, availableDisk,
+                availableMemory, availableHeap);
+    }
+
+    private static long getAvailableDisk(File folder) {
+        StatFs stat = new StatFs(folder.getAbsolutePath());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return stat.getAvailableBytes();
+        }
+
+        return (long) stat.getAvailableBlocks() * stat.getBlockSize();
+    }
+
+    public Plan getPlan() {
+        return mPlan;
+    }
+
+    // Returns -1 if the length of the package is unknown, as are all estimates.
+    public long getDownloadBytes() {
+        return mDownloadBytes;
+    }
+
+    public long getPeakDiskBytes() {
+        return mPeakDiskBytes;
+    }
+
+    public long getPeakMemoryBytes() {
+        return mPeakMemoryBytes;
+    }
+
+    public long getPeakHeapBytes() {
+        return mPeakHeapBytes;
+    }
+
+    public long getAvailableDiskBytes() {
+        return mAvailableDiskBytes;
+    }
+
+    public long getAvailableMemoryBytes() {
+        return mAvailableMemoryBytes;
+    }
+
+    public long getAvailableHeapBytes() {
+        return mAvailableHeapBytes;
+    }
+
+    // Unknown lengths are regarded as feasible, so the install decides.
+    public boolean isFeasible() {
+        return getError() == null;
+    }
+
+    // Returns why the install won't succeed, or null if it is feasible.
+    public String getError() {
+        if (mDownloadBytes < 0) return null;
+        if (mPeakDiskBytes + DiskMargin > mAvailableDiskBytes) {
+            return "Installing the " + mPlan + " package needs " + mPeakDiskBytes / MB +
+                    "MB of disk while " + mAvailableDiskBytes / MB + "MB is available";
+        }
+
+        if (mPeakMemoryBytes + MemoryMargin > mAvailableMemoryBytes) {
+            return "Installing the " + mPlan + " package needs " + mPeakMemoryBytes / MB +
+                    "MB of memory while " + mAvailableMemoryBytes / MB + "MB is available";
+        }
+
+        if (mPeakHeapBytes > mAvailableHeapBytes) {
+            return "Installing the " + mPlan + " package needs " + mPeakHeapBytes / MB +
+                    "MB of Java heap while " + mAvailableHeapBytes / MB + "MB is available";
+        }
+
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("plan=%s download=%d disk=%d/%d memory=%d/%d heap=%d/%d", mPlan,
+                mDownloadBytes, mPeakDiskBytes, mAvailableDiskBytes, mPeakMemoryBytes,
+                mAvailableMemoryBytes, mPeakHeapBytes, mAvailableHeapBytes);
+    }
+}
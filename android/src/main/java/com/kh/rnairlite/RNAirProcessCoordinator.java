@@ -0,0 +1,193 @@
+package com.kh.rnairlite;
+
+import android.os.FileObserver;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Coordinates RNAirPatchManagers of all processes of the APP, which share the same patch folders.
+ * Writing the patch folders is serialized by a file lock, while a generation counter bumped on
+ * each activation tells other processes to reload their state. Transfers are serialized by another
+ * lock, so a download doesn't keep an install of another process waiting.
+ */
+public class RNAirProcessCoordinator {
+    private static final String LockName = "update.lock";
+    private static final String DownloadLockName = "download.lock";
+    private static final long LockPollingMs = 50;
+    private static final String GenerationName = "generation";
+
+    private final File mFolder;
+    private final Runnable mOnGenerationChanged;
+    private final FileObserver mObserver;
+    // A file lock is held by the process, so threads of this process are serialized by this.
+    private final Semaphore mThreads = new Semaphore(1);
+    private volatile long mGeneration;
+
+    public RNAirProcessCoordinator(File folder, Runnable onGenerationChanged) {
+        mFolder = folder;
+        mOnGenerationChanged = onGenerationChanged;
+        mGeneration = readGeneration();
+        // FileObserver must be referenced, or it stops watching once collected.
+        mObserver = new FileObserver(folder.getAbsolutePath(),
+                FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (!GenerationName.equals(path)) return;
+                long generation = readGeneration();
+                if (generation == mGeneration) return;
+                Log.d(RNAirLiteModule.Tag, "Generation changed by another process to " +
+                        generation);
+                mGeneration = generation;
+                mOnGenerationChanged.run();
+            }
+        };
+        mObserver.startWatching();
+    }
+
+    public static class Lock {
+        private final RandomAccessFile mFile;
+        private final FileLock mLock;
+        private final @Nullable Semaphore mThreads;
+
+        Lock(RandomAccessFile file, FileLock lock, @Nullable Semaphore threads) {
+            mFile = file;
+            mLock = lock;
+            mThreads = threads;
+        }
+
+        public void release() {
+            try {
+                mLock.release();
+                mFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                if (mThreads != null) mThreads.release();
+            }
+        }
+    }
+
+    // Blocks until no other process or thread is writing the patch folders.
+    public Lock lock() throws IOException {
+        mThreads.acquireUninterruptibly();
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(new File(mFolder, LockName), "rw");
+            return new Lock(file, file.getChannel().lock(), mThreads);
+        } catch (IOException e) {
+            if (file != null) file.close();
+            mThreads.release();
+            throw e;
+        }
+    }
+
+    public @Nullable Lock tryLock() {
+        if (!mThreads.tryAcquire()) {
+            Log.d(RNAirLiteModule.Tag, "The update lock is held by this process.");
+            return null;
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(new File(mFolder, LockName), "rw");
+            FileLock lock = file.getChannel().tryLock();
+            if (lock != null) return new Lock(file, lock, mThreads);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (OverlappingFileLockException e) {
+            Log.d(RNAirLiteModule.Tag, "The update lock is held by this process.");
+        }
+
+        try {
+            if (file != null) file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        mThreads.release();
+        return null;
+    }
+
+    // Gives up after timeoutMs rather than waiting for an install which may take long.
+    public @Nullable Lock tryLock(long timeoutMs) {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        Lock lock = tryLock();
+        while (lock == null && SystemClock.elapsedRealtime() < deadline) {
+            SystemClock.sleep(LockPollingMs);
+            lock = tryLock();
+        }
+
+        return lock;
+    }
+
+    // Blocks until no other process is downloading, which is done out of the update lock.
+    public Lock lockDownload() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(mFolder, DownloadLockName), "rw");
+        try {
+            return new Lock(file, file.getChannel().lock(), null);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Called once a generation is activated or rolled back. The counter is written to a temporary
+     * file then renamed, so observers never read a half written value.
+     */
+    public void notifyGenerationChanged() {
+        long generation = readGeneration() + 1;
+        mGeneration = generation;
+        File tmp = new File(mFolder, GenerationName + ".tmp");
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(tmp, "rw");
+            out.setLength(0);
+            out.writeLong(generation);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(new File(mFolder, GenerationName))) {
+                Log.w(RNAirLiteModule.Tag, "Fail to publish generation " + generation);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private long readGeneration() {
+        File file = new File(mFolder, GenerationName);
+        if (!file.exists()) return 0;
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            return in.readLong();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.kh.rnairlite;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A tar without the content of regular files, which could be read back from the extracted tree.
+ * It is all needed to rebuild assets.tar byte by byte as the base of the next bspatch.
+ *
+ * The skeleton starts with a magic, the length and the SHA-256 of the tar, followed by records.
+ * A raw record holds bytes copied verbatim, while a file record names an extracted file whose
+ * content, padded to the tar block size, goes in its place.
+ */
+public class RNAirTarSkeleton {
+    private static final int Magic = 0x524e4154;
+    private static final int BlockSize = 512;
+    private static final int ChunkSize = 10240;
+    private static final byte RecordRaw = 'R';
+    private static final byte RecordFile = 'F';
+    private static final byte RecordEnd = 'E';
+
+    /**
+     * @param files paths of non-empty regular files in the order they appear in the tar.
+     */
+    public static String create(File tar, File root, List<String> files, File dst) {
+        DataInputStream in = null;
+        DataOutputStream out = null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(tar)));
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            DataOutputStream recordsOut = new DataOutputStream(records);
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            byte[] block = new byte[BlockSize];
+            int fileIndex = 0;
+            int count;
+            while ((count = readBlock(in, block)) > 0) {
+                md.update(block, 0, count);
+                raw.write(block, 0, count);
+                if (count < BlockSize || isZeroBlock(block)) continue;
+
+                byte type = block[156];
+                long size = parseOctal(block, 124, 12);
+                long padded = (size + BlockSize - 1) / BlockSize * BlockSize;
+                if ((type != '0' && type != 0) || size <= 0) {
+                    copy(in, raw, md, padded);
+                    continue;
+                }
+
+                if (fileIndex >= files.size()) {
+                    throw new IOException("More files in tar than extracted");
+                }
+
+                String path = files.get(fileIndex++);
+                if (new File(root, path).length() != size) {
+                    throw new IOException("Size of " + path + " doesn't match the tar");
+                }
+
+                writeRaw(recordsOut, raw);
+                recordsOut.writeByte(RecordFile);
+                recordsOut.writeUTF(path);
+                recordsOut.writeLong(size);
+                copy(in, null, md, padded);
+            }
+
+            writeRaw(recordsOut, raw);
+            recordsOut.writeByte(RecordEnd);
+            recordsOut.flush();
+
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dst)));
+            out.writeInt(Magic);
+            out.writeLong(tar.length());
+            out.write(md.digest());
+            records.writeTo(out);
+            out.flush();
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return e.toString();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return e.toString();
+        } finally {
+            try {
+                if (in != null) in.close();
+                if (out != null) out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static long getTarLength(File skeleton) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(skeleton));
+            if (in.readInt() != Magic) return -1;
+            return in.readLong();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static ByteBuffer rebuild(File skeleton, File root) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(skeleton)));
+        try {
+            if (in.readInt() != Magic) throw new IOException(skeleton + " is not a tar skeleton");
+            long length = in.readLong();
+            byte[] checksum = new byte[32];
+            in.readFully(checksum);
+
+            ByteBuffer tar = ByteBuffer.allocateDirect((int) length);
+            byte[] chunk = new byte[ChunkSize];
+            while (true) {
+                byte record = in.readByte();
+                if (record == RecordEnd) break;
+                if (record == RecordRaw) {
+                    int remaining = in.readInt();
+                    while (remaining > 0) {
+                        int count = Math.min(remaining, chunk.length);
+                        in.readFully(chunk, 0, count);
+                        tar.put(chunk, 0, count);
+                        remaining -= count;
+                    }
+                } else if (record == RecordFile) {
+                    File file = new File(root, in.readUTF());
+                    long size = in.readLong();
+                    if (file.length() != size) throw new IOException(file + " has been changed");
+                    readInto(file, tar);
+                    while (tar.position() % BlockSize != 0) tar.put((byte) 0);
+                } else {
+                    throw new IOException(skeleton + " is corrupted");
+                }
+            }
+
+            if (tar.hasRemaining()) throw new IOException("Tar rebuilt is truncated");
+            tar.rewind();
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(tar.duplicate());
+            if (!Arrays.equals(checksum, md.digest())) {
+                throw new IOException("Checksum of tar rebuilt doesn't match");
+            }
+
+            Log.d(RNAirLiteModule.Tag, "Rebuilt " + length + " bytes from " + skeleton);
+            return tar;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void readInto(File file, ByteBuffer dst) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer slice = dst.slice();
+            slice.limit((int) channel.size());
+            while (slice.hasRemaining()) {
+                if (channel.read(slice) == -1) throw new EOFException(file + " is truncated");
+            }
+
+            dst.position(dst.position() + slice.position());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int readBlock(InputStream in, byte[] block) throws IOException {
+        int offset = 0;
+        while (offset < block.length) {
+            int count = in.read(block, offset, block.length - offset);
+            if (count == -1) break;
+            offset += count;
+        }
+
+        return offset;
+    }
+
+    private static void copy(DataInputStream in, ByteArrayOutputStream out, MessageDigest md,
+                             long length) throws IOException {
+        byte[] chunk = new byte[ChunkSize];
+        while (length > 0) {
+            int count = (int) Math.min(length, chunk.length);
+            in.readFully(chunk, 0, count);
+            md.update(chunk, 0, count);
+            if (out != null) out.write(chunk, 0, count);
+            length -= count;
+        }
+    }
+
+    private static void writeRaw(DataOutputStream out, ByteArrayOutputStream raw)
+            throws IOException {
+        if (raw.size() == 0) return;
+        out.writeByte(RecordRaw);
+        out.writeInt(raw.size());
+        raw.writeTo(out);
+        raw.reset();
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) return false;
+        }
+
+        return true;
+    }
+
+    private static long parseOctal(byte[] buf, int offset, int length) throws IOException {
+        if ((buf[offset] & 0x80) != 0) throw new IOException("Binary size in tar is unsupported");
+        long value = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            byte b = buf[i];
+            if (b == 0 || b == ' ') {
+                if (value > 0) break;
+                continue;
+            }
+
+            if (b < '0' || b > '7') throw new IOException("Invalid size in tar header");
+            value = value * 8 + (b - '0');
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,111 @@
+package com.kh.rnairlite;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Chooses between downloading a delta patch and the whole base package by the expected total
+ * time, which is estimated from the remote sizes and throughputs measured in earlier updates.
+ */
+public class RNAirUpdatePlanner {
+    private static final String PrefsName = "rnairlite_planner";
+    private static final String KeyNetworkThroughput = "network";
+    private static final String KeyDecompressThroughput = "decompress";
+    private static final String KeyPatchThroughput = "patch";
+    private static final String KeyDecisions = "decisions";
+
+    // All throughputs are in bytes per millisecond.
+    private static final float DefaultNetworkThroughput = 50;
+    private static final float DefaultDecompressThroughput = 5000;
+    private static final float DefaultPatchThroughput = 20000;
+    private static final float Smoothing = 0.3f;
+    private static final long MinSampleBytes = 16 * 1024;
+    private static final int MaxDecisions = 50;
+
+    private final SharedPreferences mPrefs;
+
+    public RNAirUpdatePlanner(Context context) {
+        mPrefs = context.getSharedPreferences(PrefsName, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param patchLength length of the delta patch, or -1 if no patch is available.
+     * @param baseLength length of the base package, or -1 if it is unknown.
+     * @param assetsLength length of the local assets.tar the delta patch applies to.
+     */
+    public boolean shouldDownloadBase(long patchLength, long baseLength, long assetsLength) {
+        if (patchLength < 0) return baseLength >= 0;
+        if (baseLength < 0) return false;
+
+        float network = getThroughput(KeyNetworkThroughput, DefaultNetworkThroughput);
+        float decompress = getThroughput(KeyDecompressThroughput, DefaultDecompressThroughput);
+        float patch = getThroughput(KeyPatchThroughput, DefaultPatchThroughput);
+
+        float patchCost = patchLength / network + patchLength / decompress + assetsLength / patch;
+        float baseCost = baseLength / network + baseLength / decompress;
+        boolean downloadBase = baseCost < patchCost;
+
+        String decision = String.format("%d patch=%d base=%d assets=%d net=%.1f bz2=%.1f " +
+                "bspatch=%.1f patchMs=%.0f baseMs=%.0f choice=%s", System.currentTimeMillis(),
+                patchLength, baseLength, assetsLength, network, decompress, patch, patchCost,
+                baseCost, downloadBase ? "base" : "patch");
+        Log.i(RNAirLiteModule.Tag, "Update plan: " + decision);
+        recordDecision(decision);
+        return downloadBase;
+    }
+
+    public void recordDownload(long bytes, long ms) {
+        recordThroughput(KeyNetworkThroughput, DefaultNetworkThroughput, bytes, ms);
+    }
+
+    public void recordDecompress(long bytes, long ms) {
+        recordThroughput(KeyDecompressThroughput, DefaultDecompressThroughput, bytes, ms);
+    }
+
+    public void recordPatch(long bytes, long ms) {
+        recordThroughput(KeyPatchThroughput, DefaultPatchThroughput, bytes, ms);
+    }
+
+    public float getDecompressThroughput() {
+        return getThroughput(KeyDecompressThroughput, DefaultDecompressThroughput);
+    }
+
+    public List<String> getDecisions() {
+        String decisions = mPrefs.getString(KeyDecisions, "");
+        if (decisions.isEmpty()) return new ArrayList<>();
+        return new ArrayList<>(Arrays.asList(decisions.split("\n")));
+    }
+
+    private float getThroughput(String key, float defaultValue) {
+        return mPrefs.getFloat(key, defaultValue);
+    }
+
+    private void recordThroughput(String key, float defaultValue, long bytes, long ms) {
+        if (bytes < MinSampleBytes) return;
+        float sample = (float) bytes / Math.max(ms, 1);
+        float current = mPrefs.getFloat(key, -1);
+        float smoothed = current < 0 ? sample : current + Smoothing * (sample - current);
+        Log.v(RNAirLiteModule.Tag, "Throughput of " + key + " is " + smoothed + " bytes/ms, " +
+                "default " + defaultValue);
+        mPrefs.edit().putFloat(key, smoothed).apply();
+    }
+
+    private void recordDecision(String decision) {
+        List<String> decisions = getDecisions();
+        decisions.add(decision);
+        while (decisions.size() > MaxDecisions) decisions.remove(0);
+
+        StringBuilder sb = new StringBuilder();
+        for (String d : decisions) {
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(d);
+        }
+
+        mPrefs.edit().putString(KeyDecisions, sb.toString()).apply();
+    }
+}
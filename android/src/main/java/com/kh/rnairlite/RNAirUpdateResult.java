@@ -0,0 +1,70 @@
+package com.kh.rnairlite;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Result of an update step started through the headless API of RNAirPatchManager.
+ */
+public final class RNAirUpdateResult {
+    public enum Status {
+        // The remote version is not newer than the local one.
+        UpToDate,
+        // A newer patch is found but not downloaded yet.
+        Available,
+        Downloaded,
+        // Installed and activated, which takes effect after the React instance is recreated.
+        Installed,
+        // Installed in background and activated at the next cold start or reboot of the host.
+        Pending,
+        Failed,
+    }
+
+    private final Status mStatus;
+    private final int mVersion;
+    private final int mRemoteVersion;
+    private final @Nullable String mError;
+
+    private RNAirUpdateResult(Status status, int version, int remoteVersion,
+                              @Nullable String error) {
+        mStatus = status;
+        mVersion = version;
+        mRemoteVersion = remoteVersion;
+        mError = error;
+    }
+
+    static RNAirUpdateResult of(Status status, RNAirPatchState state) {
+        return new RNAirUpdateResult(status, state.getVersion(), state.getRemoteVersion(), null);
+    }
+
+    static RNAirUpdateResult failed(String error, RNAirPatchState state) {
+        return new RNAirUpdateResult(Status.Failed, state.getVersion(), state.getRemoteVersion(),
+                error);
+    }
+
+    public Status getStatus() {
+        return mStatus;
+    }
+
+    public boolean isSuccessful() {
+        return mStatus != Status.Failed;
+    }
+
+    // Version of the JS bundle running or to run after the step.
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public int getRemoteVersion() {
+        return mRemoteVersion;
+    }
+
+    public @Nullable String getError() {
+        return mError;
+    }
+
+    @Override
+    public String toString() {
+        return mStatus + " version " + mVersion + " remote " + mRemoteVersion +
+                (mError != null ? " " + mError : "");
+    }
+}
@@ -0,0 +1,279 @@
+#include "bz2_parallel.h"
+#include "libbzip2/bzlib.h"
+
+#include <pthread.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+
+#define BLOCK_MAGIC 0x314159265359ULL
+#define EOS_MAGIC 0x177245385090ULL
+#define MAGIC_MASK 0xFFFFFFFFFFFFULL
+#define MAGIC_BITS 48
+#define CRC_BITS 32
+#define STREAM_HEADER "BZh9"
+#define STREAM_HEADER_SIZE 4
+#define OUTPUT_CHUNK (1024 * 1024)
+
+typedef struct {
+    uint64_t start; /* Bit offset of the block magic. */
+    uint64_t end;   /* Bit offset of the magic following the block. */
+    char* output;
+    size_t outputSize;
+} Block;
+
+typedef struct {
+    const char* input;
+    Block* blocks;
+    int count;
+    volatile int next;
+    volatile int failed;
+} Job;
+
+typedef struct {
+    unsigned char* data;
+    uint64_t pos;
+} BitWriter;
+
+static int get_bit(const char* input, uint64_t pos) {
+    return (input[pos >> 3] >> (7 - (pos & 7))) & 1;
+}
+
+static uint64_t get_bits(const char* input, uint64_t pos, int count) {
+    uint64_t value = 0;
+    int i;
+    for (i = 0; i < count; ++i) {
+        value = (value << 1) | get_bit(input, pos + i);
+    }
+
+    return value;
+}
+
+/* The data of writers is zeroed, so only bits set need to be written. */
+static void put_bits(BitWriter* writer, uint64_t value, int count) {
+    int i;
+    for (i = count - 1; i >= 0; --i) {
+        if ((value >> i) & 1) writer->data[writer->pos >> 3] |= 0x80 >> (writer->pos & 7);
+        ++writer->pos;
+    }
+}
+
+static void copy_bits(BitWriter* writer, const char* input, uint64_t from, uint64_t to) {
+    const unsigned char* bytes = (const unsigned char*) input;
+    if ((writer->pos & 7) == 0) {
+        /* Whole bytes are shifted into place, only the tail is copied bit by bit. */
+        uint64_t count = (to - from) >> 3;
+        uint64_t first = from >> 3;
+        int shift = from & 7;
+        unsigned char* out = writer->data + (writer->pos >> 3);
+        uint64_t i;
+        if (shift == 0) {
+            memcpy(out, bytes + first, count);
+        } else {
+            for (i = 0; i < count; ++i) {
+                out[i] = (unsigned char) ((bytes[first + i] << shift) |
+                                          (bytes[first + i + 1] >> (8 - shift)));
+            }
+        }
+
+        writer->pos += count << 3;
+        from += count << 3;
+    }
+
+    uint64_t pos;
+    for (pos = from; pos < to; ++pos) {
+        if (get_bit(input, pos)) writer->data[writer->pos >> 3] |= 0x80 >> (writer->pos & 7);
+        ++writer->pos;
+    }
+}
+
+/*
+ * Returns the number of blocks found, or -1 if the stream is truncated or out of memory. Like the
+ * serial decoder, anything after the end magic of the first stream is ignored.
+ */
+static int find_blocks(const char* input, size_t inputSize, Block** blocks) {
+    uint64_t window = 0;
+    int count = 0;
+    int capacity = 16;
+    Block* found = (Block*) malloc(capacity * sizeof(Block));
+    if (found == NULL) return -1;
+
+    const unsigned char* bytes = (const unsigned char*) input;
+    size_t i;
+    int shift;
+    for (i = 0; i < inputSize; ++i) {
+        window = (window << 8) | bytes[i];
+        /* A magic ends in this byte at any of 8 bit offsets, the earliest one at the largest. */
+        for (shift = 7; shift >= 0; --shift) {
+            if (i * 8 + 8 - shift < MAGIC_BITS) continue;
+            uint64_t value = (window >> shift) & MAGIC_MASK;
+            if (value == BLOCK_MAGIC || value == EOS_MAGIC) break;
+        }
+
+        if (shift < 0) continue;
+        uint64_t value = (window >> shift) & MAGIC_MASK;
+        uint64_t magic = (uint64_t) i * 8 + 8 - shift - MAGIC_BITS;
+        if (count > 0 && found[count - 1].end == 0) found[count - 1].end = magic;
+        if (value == EOS_MAGIC) break;
+
+        if (count == capacity) {
+            Block* grown = (Block*) realloc(found, capacity * 2 * sizeof(Block));
+            if (grown == NULL) {
+                free(found);
+                return -1;
+            }
+
+            found = grown;
+            capacity *= 2;
+        }
+
+        found[count].start = magic;
+        found[count].end = 0;
+        found[count].output = NULL;
+        found[count].outputSize = 0;
+        ++count;
+    }
+
+    if (count > 0 && found[count - 1].end == 0) {
+        free(found);
+        return -1;
+    }
+
+    *blocks = found;
+    return count;
+}
+
+static int decode_stream(const char* input, size_t inputSize, char** output, size_t* outputSize) {
+    bz_stream bzs;
+    memset(&bzs, 0, sizeof(bzs));
+    if (BZ2_bzDecompressInit(&bzs, 0, 0) != BZ_OK) return -1;
+
+    size_t capacity = OUTPUT_CHUNK;
+    char* buffer = (char*) malloc(capacity);
+    if (buffer == NULL) {
+        BZ2_bzDecompressEnd(&bzs);
+        return -1;
+    }
+
+    bzs.next_in = (char*) input;
+    bzs.avail_in = inputSize;
+    bzs.next_out = buffer;
+    bzs.avail_out = capacity;
+    int result = BZ_OK;
+    while (result != BZ_STREAM_END) {
+        result = BZ2_bzDecompress(&bzs);
+        if ((result != BZ_OK && result != BZ_STREAM_END) ||
+                (result == BZ_OK && bzs.avail_in == 0 && bzs.avail_out > 0)) {
+            free(buffer);
+            BZ2_bzDecompressEnd(&bzs);
+            return -1;
+        }
+
+        if (bzs.avail_out == 0 && result != BZ_STREAM_END) {
+            char* grown = (char*) realloc(buffer, capacity * 2);
+            if (grown == NULL) {
+                free(buffer);
+                BZ2_bzDecompressEnd(&bzs);
+                return -1;
+            }
+
+            buffer = grown;
+            bzs.next_out = buffer + capacity;
+            bzs.avail_out = capacity;
+            capacity *= 2;
+        }
+    }
+
+    *output = buffer;
+    *outputSize = capacity - bzs.avail_out;
+    BZ2_bzDecompressEnd(&bzs);
+    return 0;
+}
+
+/*
+ * Rewraps a block as a single-block stream. Its stream CRC equals the CRC of the block, which
+ * follows the block magic.
+ */
+static int decode_block(const char* input, Block* block) {
+    uint64_t bits = block->end - block->start;
+    size_t size = STREAM_HEADER_SIZE + (bits + MAGIC_BITS + CRC_BITS + 7) / 8;
+    unsigned char* stream = (unsigned char*) calloc(size, 1);
+    if (stream == NULL) return -1;
+
+    memcpy(stream, STREAM_HEADER, STREAM_HEADER_SIZE);
+    BitWriter writer = {stream, STREAM_HEADER_SIZE * 8};
+    copy_bits(&writer, input, block->start, block->end);
+    put_bits(&writer, EOS_MAGIC, MAGIC_BITS);
+    put_bits(&writer, get_bits(input, block->start + MAGIC_BITS, CRC_BITS), CRC_BITS);
+
+    int result = decode_stream((const char*) stream, size, &block->output, &block->outputSize);
+    free(stream);
+    return result;
+}
+
+static void* decode_blocks(void* arg) {
+    Job* job = (Job*) arg;
+    while (!job->failed) {
+        int index = __sync_fetch_and_add(&job->next, 1);
+        if (index >= job->count) break;
+        if (decode_block(job->input, &job->blocks[index]) != 0) job->failed = 1;
+    }
+
+    return NULL;
+}
+
+int bz2_parallel_decompress(const char* input, size_t inputSize, int threads, char** output,
+                            size_t* outputSize) {
+    Block* blocks = NULL;
+    int count = find_blocks(input, inputSize, &blocks);
+    if (count < 2) {
+        free(blocks);
+        return -1;
+    }
+
+    Job job;
+    job.input = input;
+    job.blocks = blocks;
+    job.count = count;
+    job.next = 0;
+    job.failed = 0;
+
+    if (threads > count) threads = count;
+    pthread_t* workers = (pthread_t*) malloc(threads * sizeof(pthread_t));
+    int started = 0;
+    int i;
+    if (workers != NULL) {
+        /* The calling thread is one of the workers. */
+        for (i = 1; i < threads; ++i) {
+            if (pthread_create(&workers[started], NULL, decode_blocks, &job) != 0) break;
+            ++started;
+        }
+    }
+
+    decode_blocks(&job);
+    for (i = 0; i < started; ++i) {
+        pthread_join(workers[i], NULL);
+    }
+
+    free(workers);
+
+    size_t total = 0;
+    for (i = 0; i < count; ++i) {
+        total += blocks[i].outputSize;
+    }
+
+    char* joined = job.failed ? NULL : (char*) malloc(total > 0 ? total : 1);
+    size_t offset = 0;
+    for (i = 0; i < count; ++i) {
+        if (joined != NULL) memcpy(joined + offset, blocks[i].output, blocks[i].outputSize);
+        offset += blocks[i].outputSize;
+        free(blocks[i].output);
+    }
+
+    free(blocks);
+    if (joined == NULL) return -1;
+
+    *output = joined;
+    *outputSize = total;
+    return 0;
+}
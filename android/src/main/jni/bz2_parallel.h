@@ -0,0 +1,28 @@
+#ifndef RNAIRLITE_BZ2_PARALLEL_H
+#define RNAIRLITE_BZ2_PARALLEL_H
+
+#include <stddef.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/*
+ * Decompresses a bzip2 stream with blocks decoded on a pool of threads.
+ *
+ * Blocks of bzip2 are independent, but aligned to bits rather than bytes. Block boundaries are
+ * found by scanning for the 48-bit block magic, then each block is rewrapped as a standalone
+ * single-block stream, like bzip2recover does, and decoded on its own. Outputs of blocks are
+ * joined into one buffer sized by the sum of them.
+ *
+ * Returns 0 and a buffer allocated by malloc on success. Returns non-zero if the input holds less
+ * than 2 blocks or any block fails to decode, so the caller could fall back to a serial decoder.
+ */
+int bz2_parallel_decompress(const char* input, size_t inputSize, int threads, char** output,
+                            size_t* outputSize);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
@@ -1,4 +1,5 @@
-#include "com_kh_rnairlite_RNAirPatchManager.h"
+#include "com_kh_rnairlite_RNAirNativePatchEngine.h"
+#include "bz2_parallel.h"
 #include "libbzip2/bzlib.h"
 #include "libminibsdiff/bspatch.h"
 
@@ -7,11 +8,7 @@
 // Created by Kitt Hsu on 5/22/16.
 //
 
-JNIEXPORT jobject JNICALL Java_com_kh_rnairlite_RNAirPatchManager_decompress(JNIEnv* env, jobject,
-                                                                             jobject patch) {
-    void* patchData = env->GetDirectBufferAddress(patch);
-    jlong patchSize = env->GetDirectBufferCapacity(patch);
-
+static jobject decompressSerial(JNIEnv* env, void* patchData, jlong patchSize) {
     bz_stream* bzs = (bz_stream*)calloc(1, sizeof(bz_stream));
     if (bzs == NULL) {
         return NULL;
@@ -57,38 +54,54 @@ JNIEXPORT jobject JNICALL Java_com_kh_rnairlite_RNAirPatchManager_decompress(JNI
     return env->NewDirectByteBuffer(output, outputSize);
 }
 
-JNIEXPORT jobject JNICALL Java_com_kh_rnairlite_RNAirPatchManager_patch(JNIEnv* env, jobject,
-                                                                        jobject raw,
-                                                                        jobject patch) {
+JNIEXPORT jobject JNICALL Java_com_kh_rnairlite_RNAirNativePatchEngine_decompressSerial(JNIEnv* env,
+                                                                                        jobject,
+                                                                                        jobject patch) {
+    return decompressSerial(env, env->GetDirectBufferAddress(patch),
+                            env->GetDirectBufferCapacity(patch));
+}
+
+JNIEXPORT jobject JNICALL Java_com_kh_rnairlite_RNAirNativePatchEngine_decompressParallel(
+        JNIEnv* env, jobject, jobject patch, jint threads) {
+    void* patchData = env->GetDirectBufferAddress(patch);
+    jlong patchSize = env->GetDirectBufferCapacity(patch);
+
+    char* output = NULL;
+    size_t outputSize = 0;
+    if (bz2_parallel_decompress((const char*) patchData, patchSize, threads, &output,
+                                &outputSize) != 0) {
+        // A stream of a single block, or anything the block scanner doesn't understand.
+        return decompressSerial(env, patchData, patchSize);
+    }
+
+    return env->NewDirectByteBuffer(output, outputSize);
+}
+
+JNIEXPORT jobject JNICALL Java_com_kh_rnairlite_RNAirNativePatchEngine_patch(JNIEnv* env, jobject,
+                                                                             jobject raw,
+                                                                             jobject patch) {
     void* rawData = env->GetDirectBufferAddress(raw);
     jlong rawSize = env->GetDirectBufferCapacity(raw);
     void* patchData = env->GetDirectBufferAddress(patch);
     jlong patchSize = env->GetDirectBufferCapacity(patch);
 
-    jlong newSize = patchSize;
-    u_char* newData = (u_char*) malloc(newSize);
-    if (newData == NULL) {
+    // bspatch returns 0 on success rather than the length, which is recorded in the header.
+    ssize_t newSize = bspatch_newsize((u_char*) patchData, patchSize);
+    if (newSize < 0) {
         return NULL;
     }
 
-    int new_bytes = 0;
-    while (true) {
-        new_bytes = bspatch((u_char*) rawData, rawSize, (u_char*)patchData, patchSize, newData,
-                            newSize);
-        if (new_bytes == -1) {
-            newSize *= 2;
-            newData = (u_char*) realloc(newData, newSize);
-            continue;
-        }
-
-        if (new_bytes == -2 || new_bytes == -3) {
-            return NULL;
-        }
-
-        break;
+    u_char* newData = (u_char*) malloc(newSize > 0 ? newSize : 1);
+    if (newData == NULL) {
+        return NULL;
     }
 
+    if (bspatch((u_char*) rawData, rawSize, (u_char*) patchData, patchSize, newData,
+                newSize) != 0) {
+        free(newData);
+        return NULL;
+    }
 
-    return env->NewDirectByteBuffer(newData, new_bytes);
+    return env->NewDirectByteBuffer(newData, newSize);
 }
 
@@ -0,0 +1,153 @@
+'use strict';
+
+const fs = require('fs');
+const http = require('http');
+const path = require('path');
+const url = require('url');
+
+const TICK_MS = 50;
+
+function classify(pathname) {
+  if (/\/newest\/base$/.test(pathname)) return 'base';
+  if (/\/manifest$/.test(pathname)) return 'manifest';
+  if (/\/objects\/[0-9a-f]{64}$/.test(pathname)) return 'object';
+  if (/\/assets\/[0-9a-f]{64}$/.test(pathname)) return 'asset';
+  if (/\/apk\/\d+\/patch$/.test(pathname)) return 'apk';
+  if (/\/\d+\/patch$/.test(pathname)) return 'patch';
+  if (/\/\d+\/delta$/.test(pathname)) return 'delta';
+  return 'other';
+}
+
+function parseRange(header, total) {
+  const m = /^bytes=(\d*)-(\d*)$/.exec(header || '');
+  if (!m || (m[1] === '' && m[2] === '')) return null;
+  var start, end;
+  if (m[1] === '') {
+    start = Math.max(0, total - parseInt(m[2]));
+    end = total - 1;
+  } else {
+    start = parseInt(m[1]);
+    end = m[2] === '' ? total - 1 : Math.min(parseInt(m[2]), total - 1);
+  }
+
+  if (start > end || start >= total) return null;
+  return {start, end};
+}
+
+// Serves a patch repository built by the CLI like a static CDN does, with
+// configurable latency, per-connection bandwidth, failures and Range support.
+class CdnSimulator {
+  constructor(options) {
+    options = options || {};
+    this.root = options.root || 'airlite';
+    this.latencyMs = options.latencyMs || 0;
+    this.bandwidth = options.bandwidth || 0;
+    this.errorRate = options.errorRate || 0;
+    this.dropRate = options.dropRate || 0;
+    this.rangeSupport = options.rangeSupport !== false;
+    this.cache = {};
+    this.stats = {requests: {}, bytesSent: 0};
+    this.server = http.createServer((req, res) => this.handle(req, res));
+  }
+
+  start(port) {
+    return new Promise((resolve) => {
+      this.server.listen(port || 0, '127.0.0.1', () => {
+        resolve('http://127.0.0.1:' + this.server.address().port + '/');
+      });
+    });
+  }
+
+  stop() {
+    return new Promise((resolve) => this.server.close(() => resolve()));
+  }
+
+  count(kind, status) {
+    const byKind = this.stats.requests[kind] = this.stats.requests[kind] || {};
+    byKind[status] = (byKind[status] || 0) + 1;
+  }
+
+  load(pathname) {
+    if (this.cache[pathname] !== undefined) return this.cache[pathname];
+    const file = path.join(this.root, path.normalize(pathname).replace(/^(\.\.[\/\\])+/, ''));
+    var content = null;
+    if (fs.existsSync(file) && fs.statSync(file).isFile()) {
+      content = fs.readFileSync(file);
+    }
+
+    this.cache[pathname] = content;
+    return content;
+  }
+
+  handle(req, res) {
+    const pathname = url.parse(req.url).pathname;
+    const kind = classify(pathname);
+    setTimeout(() => {
+      if (Math.random() < this.errorRate) {
+        this.count(kind, 503);
+        res.writeHead(503);
+        res.end();
+        return;
+      }
+
+      const content = this.load(pathname);
+      if (!content) {
+        this.count(kind, 404);
+        res.writeHead(404);
+        res.end();
+        return;
+      }
+
+      var body = content;
+      const range = this.rangeSupport ?
+        parseRange(req.headers.range, content.length) : null;
+      if (range) {
+        body = content.slice(range.start, range.end + 1);
+        this.count(kind, 206);
+        res.writeHead(206, {
+          'Content-Length': body.length,
+          'Content-Range': 'bytes ' + range.start + '-' + range.end + '/' +
+            content.length,
+        });
+      } else {
+        this.count(kind, 200);
+        res.writeHead(200, {'Content-Length': body.length});
+      }
+
+      this.send(res, body, Math.random() < this.dropRate);
+    }, this.latencyMs);
+  }
+
+  send(res, body, drop) {
+    const dropAt = drop ? Math.floor(body.length / 2) : body.length;
+    if (!this.bandwidth) {
+      this.stats.bytesSent += dropAt;
+      if (drop) {
+        res.write(body.slice(0, dropAt));
+        res.destroy();
+      } else {
+        res.end(body);
+      }
+      return;
+    }
+
+    const chunk = Math.max(1, Math.floor(this.bandwidth * TICK_MS / 1000));
+    var offset = 0;
+    const tick = () => {
+      if (offset >= dropAt) {
+        if (drop) res.destroy(); else res.end();
+        return;
+      }
+
+      const end = Math.min(offset + chunk, dropAt);
+      res.write(body.slice(offset, end));
+      this.stats.bytesSent += end - offset;
+      offset = end;
+      setTimeout(tick, TICK_MS);
+    };
+
+    tick();
+  }
+}
+
+module.exports = CdnSimulator;
@@ -54,14 +54,52 @@ function main() {
     }
   );
 
+  parser.addArgument(
+    ['--apk'], {
+      help: 'Version code of the APK whose embedded JS bundle will be patched.'
+    }
+  );
+
+  parser.addArgument(
+    ['--apkBundle'], {
+      help: 'The JS bundle embedded in the APK, e.g. index.android.bundle.'
+    }
+  );
+
+  parser.addArgument(
+    ['--lazyAssetSize'], {
+      type: 'int',
+      help: 'Assets not smaller than this in bytes are fetched after the new bundle is activated.'
+    }
+  );
+
+  parser.addArgument(
+    ['--hotAssets'], {
+      help: 'Comma separated path prefixes of assets always packed, e.g. drawable-mdpi/splash.'
+    }
+  );
+
   var args = parser.parseArgs();
-  var pm = new PatchManager(args.platform, args.entry, args.patchVersion);
+  var pm = new PatchManager(args.platform, args.entry, args.patchVersion, {
+    minSize: args.lazyAssetSize,
+    hot: args.hotAssets ? args.hotAssets.split(',') : [],
+  });
 
   if (args.verify) {
     tr.error('To be implemented');
     return;
   }
 
+  if (args.apk || args.apkBundle) {
+    if (!args.apk || !args.apkBundle) {
+      tr.error('Both --apk and --apkBundle are required to register an APK');
+      return;
+    }
+
+    pm.registerApk(args.apk, args.apkBundle);
+    if (!args.pack) return;
+  }
+
   if (args.pack) {
     pm.buildNewPatch();
     return;
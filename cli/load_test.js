@@ -0,0 +1,435 @@
+#!/usr/bin/env node
+
+'use strict';
+
+const ArgumentParser = require('argparse').ArgumentParser;
+const crypto = require('crypto');
+const fs = require('fs');
+const http = require('http');
+const path = require('path');
+const tr = require('./trivial');
+const CdnSimulator = require('./cdn_simulator');
+const moduleDelta = require('./module_delta');
+
+const HEADER_LENGTH = 64;
+const VERSION_OFFSET = 1;
+const SHA_OFFSET = 5;
+const SHA_LENGTH = 32;
+const PACK_VERSION_MODULE_DELTA = 0x02;
+const LAZY_MANIFEST = 'lazy.manifest';
+const STAGES = ['check', 'download', 'install', 'lazy'];
+
+function optional(name) {
+  try {
+    return require(name);
+  } catch (e) {
+    return null;
+  }
+}
+
+const bz2 = optional('node-addon-bz2');
+const bs = optional('node-addon-bsdiff');
+
+function request(base, pathname, range) {
+  return new Promise((resolve) => {
+    const headers = range ? {Range: 'bytes=' + range} : {};
+    const req = http.get(base + pathname, {headers}, (res) => {
+      const chunks = [];
+      res.on('data', (c) => chunks.push(c));
+      res.on('end', () => resolve({
+        status: res.statusCode,
+        headers: res.headers,
+        body: Buffer.concat(chunks),
+      }));
+      res.on('aborted', () => resolve({error: 'aborted'}));
+    });
+    req.on('error', (err) => resolve({error: err.code || err.message}));
+  });
+}
+
+function sha256(buf) {
+  return crypto.createHash('sha256').update(buf).digest('hex');
+}
+
+function verify(payload) {
+  if (payload.length < HEADER_LENGTH) return false;
+  const header = Buffer.alloc(HEADER_LENGTH, 0);
+  payload.copy(header, 0, 0, SHA_OFFSET);
+  const sha = crypto.createHash('sha256')
+    .update(header)
+    .update(payload.slice(HEADER_LENGTH))
+    .digest();
+  return sha.equals(payload.slice(SHA_OFFSET, SHA_OFFSET + SHA_LENGTH));
+}
+
+// Parses the pointer manifest like RNAirPointerManifest does.
+function parsePointer(body) {
+  const lines = body.toString('utf8').split('\n');
+  if (lines[0] !== '1') return null;
+  const pointer = {version: -1, base: null, patch: {}, delta: {}, apk: {}};
+  lines.slice(1).forEach((line) => {
+    const fields = line.split(' ');
+    if (fields[0] === 'version' && fields.length === 2) {
+      pointer.version = parseInt(fields[1]);
+    } else if (fields[0] === 'base' && fields.length === 3) {
+      pointer.base = {hash: fields[1], size: parseInt(fields[2])};
+    } else if (fields.length === 4 && pointer[fields[0]]) {
+      pointer[fields[0]][fields[1]] = {hash: fields[2], size: parseInt(fields[3])};
+    }
+  });
+
+  return pointer.version < 0 ? null : pointer;
+}
+
+// Lists lazy assets as {hash: size} from lazy.manifest in an assets.tar.
+function loadLazyAssets(tar) {
+  const lazy = {};
+  if (!tar) return lazy;
+  const member = moduleDelta.members(tar).members.find((m) => m.name === LAZY_MANIFEST);
+  if (!member) return lazy;
+  tar.slice(member.content, member.content + member.size).toString('utf8')
+    .split('\n').slice(1).forEach((line) => {
+      const fields = line.split(' ');
+      if (fields.length >= 3) lazy[fields[1]] = parseInt(fields[0]);
+    });
+
+  return lazy;
+}
+
+// Walks the same HTTP protocol as RNAirPatchManager. With --contentAddressed,
+// versions and sizes come from the pointer manifest and packages are fetched
+// from objects/<sha256>. Otherwise the version is probed by a Range request
+// on the package path, as is the base once a patch is installed. Clients with
+// a patch installed try the module delta before the bsdiff patch. Fresh
+// clients run an APK registered in the repository, if any, and try the patch
+// against its bundle before the base. After the install, lazy assets of the
+// new version not cached yet are fetched.
+class SimulatedClient {
+  constructor(base, version, assets, options, repository, apk) {
+    this.base = base;
+    this.version = version;
+    this.assets = assets;
+    this.options = options;
+    this.repository = repository;
+    this.apk = version === null ? apk : null;
+  }
+
+  patchPath() {
+    if (this.apk !== null) return 'android/apk/' + this.apk + '/patch';
+    if (this.version === null) return 'android/newest/base';
+    return 'android/' + this.version + '/patch';
+  }
+
+  // Returns {remoteVersion, packages} with the packages to try in order, or
+  // {error}.
+  async check() {
+    if (this.options.contentAddressed) {
+      const res = await request(this.base, 'android/manifest');
+      if (res.error || res.status !== 200) return {error: res.error || res.status};
+      const pointer = parsePointer(res.body);
+      if (!pointer) return {error: 'manifest'};
+      const object = (entry) => entry &&
+        {path: 'android/objects/' + entry.hash, hash: entry.hash};
+      const packages = this.version === null ?
+        [this.apk === null ? null : object(pointer.apk[this.apk]), object(pointer.base)] :
+        [object(pointer.delta[this.version]), object(pointer.patch[this.version])];
+      if (packages[0] && this.apk !== null) packages[0].apk = this.apk;
+      return {
+        remoteVersion: pointer.version,
+        bytes: res.body.length,
+        packages: packages.filter((p) => p),
+      };
+    }
+
+    const probe = await request(this.base, this.patchPath(), '1-4');
+    if (!probe.error && probe.status === 404 && this.apk !== null) {
+      // No patch for the APK, so the base is probed like the device does.
+      this.apk = null;
+      return this.check();
+    }
+
+    if (this.version !== null) await request(this.base, 'android/newest/base', '1-4');
+    if (probe.error || probe.status !== 206 || probe.body.length !== 4) {
+      return {error: probe.error || probe.status};
+    }
+
+    const packages = [{path: this.patchPath(), apk: this.apk}];
+    if (this.version !== null) {
+      packages.unshift({path: 'android/' + this.version + '/delta', optional: true});
+    } else if (this.apk !== null) {
+      packages.push({path: 'android/newest/base'});
+    }
+
+    return {remoteVersion: probe.body.readUInt32BE(0), bytes: probe.body.length, packages};
+  }
+
+  // Fetches the first package found, falling back on 404 like the device.
+  async download() {
+    const remote = this.remote;
+    for (var i = 0; i < remote.packages.length; ++i) {
+      const pkg = remote.packages[i];
+      const res = await request(this.base, pkg.path);
+      if (!res.error && res.status === 404 && i + 1 < remote.packages.length) continue;
+      if (res.error || res.status !== 200) return {error: res.error || res.status};
+      if (pkg.hash && sha256(res.body) !== pkg.hash) return {error: 'object-hash'};
+      if (!verify(res.body)) return {error: 'checksum'};
+      return {body: res.body, apk: pkg.apk || null};
+    }
+
+    return {error: 'no-package'};
+  }
+
+  install(body, apk) {
+    if (!bz2 || !bz2.decompressSync) return {error: 'no-bz2'};
+    const data = bz2.decompressSync(body.slice(HEADER_LENGTH));
+    if (apk !== null) {
+      if (!bs || !bs.patch) return {error: 'no-bspatch'};
+      bs.patch(this.repository.apkBundle(apk), data);
+      return {bytes: data.length};
+    }
+
+    if (this.version === null) return {bytes: data.length};
+    if (!this.assets) return {error: 'no-assets'};
+    if (body[0] === PACK_VERSION_MODULE_DELTA) {
+      return {bytes: moduleDelta.apply(this.assets, data).length};
+    }
+
+    if (!bs || !bs.patch) return {error: 'no-bspatch'};
+    bs.patch(this.assets, data);
+    return {bytes: data.length};
+  }
+
+  // Fetches up to --lazyConcurrency assets at the same time, like prefetch.
+  async fetchLazyAssets(record) {
+    const cached = this.version === null ? {} : this.repository.lazyAssets(this.version);
+    const wanted = this.repository.lazyAssets('newest');
+    const hashes = Object.keys(wanted).filter((hash) => cached[hash] === undefined);
+    if (hashes.length === 0) return;
+
+    const started = Date.now();
+    var bytes = 0;
+    var error = null;
+    var next = 0;
+    const worker = async () => {
+      while (next < hashes.length && !error) {
+        const hash = hashes[next++];
+        const res = await request(this.base, 'android/assets/' + hash);
+        if (res.error || res.status !== 200) {
+          error = res.error || res.status;
+        } else if (sha256(res.body) !== hash) {
+          error = 'asset-hash';
+        } else {
+          bytes += res.body.length;
+        }
+      }
+    };
+
+    const workers = [];
+    for (var i = 0; i < Math.min(this.options.lazyConcurrency, hashes.length); ++i) {
+      workers.push(worker());
+    }
+
+    await Promise.all(workers);
+    record('lazy', Date.now() - started, bytes, error);
+  }
+
+  async run(record) {
+    var started = Date.now();
+    const remote = await this.check();
+    record('check', Date.now() - started, remote.bytes || 0, remote.error);
+    if (remote.error) return;
+    if (this.version !== null && remote.remoteVersion <= this.version) return;
+    this.remote = remote;
+
+    started = Date.now();
+    const downloaded = await this.download();
+    record('download', Date.now() - started,
+      downloaded.body ? downloaded.body.length : 0, downloaded.error);
+    if (downloaded.error) return;
+
+    if (this.options.install) {
+      started = Date.now();
+      const installed = this.install(downloaded.body, downloaded.apk);
+      record('install', Date.now() - started, installed.bytes || 0, installed.error);
+      if (installed.error) return;
+    }
+
+    await this.fetchLazyAssets(record);
+  }
+}
+
+function percentile(sorted, p) {
+  if (sorted.length === 0) return 0;
+  return sorted[Math.min(sorted.length - 1, Math.floor(sorted.length * p))];
+}
+
+function report(results, elapsed, server) {
+  STAGES.forEach((stage) => {
+    const r = results[stage];
+    const total = r.latencies.length + r.failures;
+    if (total === 0) return;
+    const sorted = r.latencies.slice().sort((a, b) => a - b);
+    tr.info(stage + ':', 'ok', r.latencies.length, 'failed', r.failures,
+      'p50', percentile(sorted, 0.5) + 'ms',
+      'p95', percentile(sorted, 0.95) + 'ms',
+      'p99', percentile(sorted, 0.99) + 'ms',
+      'max', (sorted[sorted.length - 1] || 0) + 'ms',
+      'throughput', Math.round(r.bytes / Math.max(elapsed, 1) * 1000) + 'B/s');
+    Object.keys(r.errors).forEach((e) => tr.warn('  ' + e + ':', r.errors[e]));
+  });
+
+  tr.info('server:', 'bytes sent', server.bytesSent);
+  Object.keys(server.requests).forEach((kind) => {
+    tr.info('  ' + kind + ':', JSON.stringify(server.requests[kind]));
+  });
+}
+
+function loadVersions(root) {
+  const base = path.join(root, 'android');
+  if (!fs.existsSync(base)) throw new Error(base + ' is not a patch repository');
+  return fs.readdirSync(base)
+    .filter((p) => /^\d+$/.test(p) &&
+      fs.existsSync(path.join(base, p, 'patch')))
+    .map((p) => parseInt(p));
+}
+
+function loadAssets(root, version) {
+  const tar = path.join(root, 'android', '' + version, 'assets.tar');
+  return fs.existsSync(tar) ? fs.readFileSync(tar) : null;
+}
+
+// Version codes of APKs registered by airpatch --apk.
+function loadApks(root) {
+  const base = path.join(root, 'android', 'apk');
+  if (!fs.existsSync(base)) return [];
+  return fs.readdirSync(base)
+    .filter((p) => /^\d+$/.test(p) && fs.existsSync(path.join(base, p, 'bundle')))
+    .map((p) => parseInt(p));
+}
+
+// Lazy assets by version, read from assets.tar of each version once, and
+// bundles of APKs registered.
+class Repository {
+  constructor(root) {
+    this.root = root;
+    this.lazy = {};
+    this.apks = {};
+  }
+
+  apkBundle(versionCode) {
+    if (this.apks[versionCode] === undefined) {
+      this.apks[versionCode] = fs.readFileSync(
+        path.join(this.root, 'android', 'apk', '' + versionCode, 'bundle'));
+    }
+
+    return this.apks[versionCode];
+  }
+
+  lazyAssets(version) {
+    if (this.lazy[version] === undefined) {
+      this.lazy[version] = loadLazyAssets(loadAssets(this.root, version));
+    }
+
+    return this.lazy[version];
+  }
+}
+
+async function main() {
+  const parser = new ArgumentParser({
+    addHelp: true,
+    description: 'Run simulated RNAirLite clients against a local CDN simulator.'
+  });
+
+  parser.addArgument(['--root'], {defaultValue: 'airlite',
+    help: 'Patch repository built by airpatch. Default is airlite.'});
+  parser.addArgument(['--clients'], {type: 'int', defaultValue: 200,
+    help: 'Number of simulated clients.'});
+  parser.addArgument(['--concurrency'], {type: 'int', defaultValue: 50,
+    help: 'Number of clients running at the same time.'});
+  parser.addArgument(['--freshRatio'], {type: 'float', defaultValue: 0.2,
+    help: 'Ratio of clients without any patch installed, which run an APK ' +
+      'registered in the repository if any.'});
+  parser.addArgument(['--latency'], {type: 'int', defaultValue: 50,
+    help: 'Server latency in ms.'});
+  parser.addArgument(['--bandwidth'], {type: 'int', defaultValue: 0,
+    help: 'Bytes per second of each connection. 0 means unlimited.'});
+  parser.addArgument(['--errorRate'], {type: 'float', defaultValue: 0,
+    help: 'Ratio of requests answered with 503.'});
+  parser.addArgument(['--dropRate'], {type: 'float', defaultValue: 0,
+    help: 'Ratio of responses dropped half way.'});
+  parser.addArgument(['--noRange'], {action: 'storeTrue',
+    help: 'Ignore Range headers like a misconfigured CDN.'});
+  parser.addArgument(['--install'], {action: 'storeTrue',
+    help: 'Also decompress and patch what is downloaded.'});
+  parser.addArgument(['--contentAddressed'], {action: 'storeTrue',
+    help: 'Resolve packages by the pointer manifest like setContentAddressed(true).'});
+  parser.addArgument(['--lazyConcurrency'], {type: 'int', defaultValue: 2,
+    help: 'Lazy assets each client fetches at the same time.'});
+
+  const args = parser.parseArgs();
+  const versions = loadVersions(args.root);
+  const apks = loadApks(args.root);
+  const simulator = new CdnSimulator({
+    root: args.root,
+    latencyMs: args.latency,
+    bandwidth: args.bandwidth,
+    errorRate: args.errorRate,
+    dropRate: args.dropRate,
+    rangeSupport: !args.noRange,
+  });
+
+  const base = await simulator.start();
+  tr.info('CDN simulator is serving', args.root, 'at', base);
+
+  const results = {};
+  STAGES.forEach((s) => results[s] = {latencies: [], failures: 0, bytes: 0, errors: {}});
+  const record = (stage, ms, bytes, error) => {
+    const r = results[stage];
+    if (error) {
+      r.failures++;
+      r.errors[error] = (r.errors[error] || 0) + 1;
+      return;
+    }
+
+    r.latencies.push(ms);
+    r.bytes += bytes;
+  };
+
+  const assets = {};
+  const repository = new Repository(args.root);
+  var next = 0;
+  const started = Date.now();
+  const worker = async () => {
+    while (next < args.clients) {
+      next++;
+      var version = null;
+      if (versions.length > 0 && Math.random() >= args.freshRatio) {
+        version = versions[Math.floor(Math.random() * versions.length)];
+      }
+
+      if (args.install && version !== null && assets[version] === undefined) {
+        assets[version] = loadAssets(args.root, version);
+      }
+
+      const apk = apks.length > 0 ? apks[Math.floor(Math.random() * apks.length)] : null;
+      await new SimulatedClient(base, version,
+        version === null ? null : assets[version], args, repository, apk).run(record);
+    }
+  };
+
+  const workers = [];
+  for (var i = 0; i < Math.min(args.concurrency, args.clients); ++i) {
+    workers.push(worker());
+  }
+
+  await Promise.all(workers);
+  const elapsed = Date.now() - started;
+  await simulator.stop();
+  tr.info(args.clients, 'clients finished in', elapsed + 'ms');
+  report(results, elapsed, simulator.stats);
+}
+
+main().catch((err) => {
+  tr.error(err.stack || err);
+  process.exit(1);
+});
@@ -0,0 +1,383 @@
+'use strict';
+
+const crypto = require('crypto');
+
+// Keep in sync with RNAirModuleDelta.java.
+const MAGIC = 0x524e4144;
+const OP_COPY = 'C'.charCodeAt(0);
+const OP_LITERAL = 'L'.charCodeAt(0);
+const OP_ID_MAP = 'M'.charCodeAt(0);
+const OP_REMAPPED_COPY = 'R'.charCodeAt(0);
+const OP_END = 'E'.charCodeAt(0);
+const BLOCK_SIZE = 512;
+const MODULE_START = Buffer.from('\n__d(');
+
+function sha256(buf) {
+  return crypto.createHash('sha256').update(buf).digest('hex');
+}
+
+function parseSize(header) {
+  const field = header.slice(124, 136);
+  if (field[0] & 0x80) {
+    var size = 0;
+    for (var i = 1; i < field.length; ++i) size = size * 256 + field[i];
+    return size;
+  }
+
+  const text = field.toString('ascii').replace(/[\0 ]+/g, ' ').trim();
+  return text ? parseInt(text, 8) : 0;
+}
+
+function parseName(header) {
+  const cstr = (buf) => {
+    const end = buf.indexOf(0);
+    return buf.slice(0, end < 0 ? buf.length : end).toString('utf8');
+  };
+
+  const name = cstr(header.slice(0, 100));
+  const prefix = header.slice(257, 262).toString('ascii') === 'ustar' ?
+    cstr(header.slice(345, 500)) : '';
+  return (prefix ? prefix + '/' + name : name).replace(/^\.\//, '');
+}
+
+function isZeroBlock(buf, offset) {
+  for (var i = offset; i < offset + BLOCK_SIZE; ++i) {
+    if (buf[i] !== 0) return false;
+  }
+
+  return true;
+}
+
+// Yields every member of a tar with offsets of its header and content.
+function members(tarBuf) {
+  const result = [];
+  var offset = 0;
+  while (offset + BLOCK_SIZE <= tarBuf.length) {
+    if (isZeroBlock(tarBuf, offset)) break;
+    const header = tarBuf.slice(offset, offset + BLOCK_SIZE);
+    const size = parseSize(header);
+    const type = String.fromCharCode(header[156] || 0x30);
+    result.push({
+      name: parseName(header),
+      type,
+      header: offset,
+      content: offset + BLOCK_SIZE,
+      size,
+    });
+    offset += BLOCK_SIZE + Math.ceil(size / BLOCK_SIZE) * BLOCK_SIZE;
+  }
+
+  return {members: result, end: offset};
+}
+
+// Splits a bundle at each module definition, i.e. a line starting with __d(.
+// The prelude and the trailing require call stick to the first and the last
+// segment.
+function splitModules(bundle, start, end) {
+  const segments = [];
+  var from = start;
+  var at = bundle.indexOf(MODULE_START, start);
+  while (at >= 0 && at < end) {
+    if (at + 1 > from) segments.push({start: from, end: at + 1});
+    from = at + 1;
+    at = bundle.indexOf(MODULE_START, from);
+  }
+
+  if (end > from) segments.push({start: from, end});
+  return segments;
+}
+
+// Module ids in a segment: the id after __d( and ids passed to require( by the
+// packager, and the id and dependencies Metro appends after the factory.
+const DEFINE_ID = /^__d\(\s*(\d+)/;
+const REQUIRE_ID = /\brequire\(\s*(\d+)/g;
+const METRO_IDS = /\},\s*\d+\s*,\s*\[[\d,\s]*\]\s*(?:,\s*"[^"]*"\s*)?\);?\s*$/;
+
+// Returns ids of a segment as offsets relative to it, and the segment with
+// ids stripped, which stays the same when modules are only renumbered.
+function parseIds(segment) {
+  const text = segment.toString('latin1');
+  const ids = [];
+  const add = (index, digits) => {
+    ids.push({offset: index, length: digits.length, id: parseInt(digits, 10)});
+  };
+
+  var m = DEFINE_ID.exec(text);
+  if (m) add(m[0].length - m[1].length, m[1]);
+  REQUIRE_ID.lastIndex = 0;
+  while ((m = REQUIRE_ID.exec(text)) !== null) {
+    add(m.index + m[0].length - m[1].length, m[1]);
+  }
+
+  m = METRO_IDS.exec(text);
+  if (m) {
+    const list = m[0].slice(0, m[0].indexOf(']'));
+    const digits = /\d+/g;
+    var d;
+    while ((d = digits.exec(list)) !== null) add(m.index + d.index, d[0]);
+  }
+
+  ids.sort((a, b) => a.offset - b.offset);
+  const parts = [];
+  var from = 0;
+  ids.forEach((id) => {
+    parts.push(segment.slice(from, id.offset));
+    from = id.offset + id.length;
+  });
+
+  parts.push(segment.slice(from));
+  return {ids, normalized: Buffer.concat(parts)};
+}
+
+// Matches modules of the new bundle to modules of the old one by their
+// contents with ids stripped. Ids of a match must map consistently, i.e. an
+// old id is always renumbered to the same new id, or the module is sent as a
+// literal.
+function matchModules(modules, newTar, start, end) {
+  const idMap = new Map();
+  const matches = splitModules(newTar, start, end).map((s) => {
+    const segment = newTar.slice(s.start, s.end);
+    const parsed = parseIds(segment);
+    const old = modules[sha256(parsed.normalized)];
+    if (!old || old.ids.length !== parsed.ids.length) return {segment};
+
+    const consistent = parsed.ids.every((id, i) => {
+      const mapped = idMap.get(old.ids[i].id);
+      return mapped === undefined || mapped === id.id;
+    });
+
+    if (!consistent) return {segment};
+    const remapped = [];
+    parsed.ids.forEach((id, i) => {
+      idMap.set(old.ids[i].id, id.id);
+      if (old.ids[i].id !== id.id) remapped.push(old.ids[i].offset);
+    });
+
+    return {segment, at: old.start, length: old.length, remapped};
+  });
+
+  return {idMap, matches};
+}
+
+class OpWriter {
+  constructor() {
+    this.chunks = [];
+    this.literals = [];
+    this.copy = null;
+  }
+
+  // Copies with ids to rewrite become remapped copies, the rest plain ones.
+  flushCopy() {
+    if (!this.copy) return;
+    const remapped = this.copy.remapped;
+    if (remapped.length === 0) {
+      const op = Buffer.alloc(9);
+      op.writeUInt8(OP_COPY, 0);
+      op.writeUInt32BE(this.copy.offset, 1);
+      op.writeUInt32BE(this.copy.length, 5);
+      this.chunks.push(op);
+    } else {
+      const op = Buffer.alloc(13 + 4 * remapped.length);
+      op.writeUInt8(OP_REMAPPED_COPY, 0);
+      op.writeUInt32BE(this.copy.offset, 1);
+      op.writeUInt32BE(this.copy.length, 5);
+      op.writeUInt32BE(remapped.length, 9);
+      remapped.forEach((at, i) => op.writeUInt32BE(at, 13 + 4 * i));
+      this.chunks.push(op);
+    }
+
+    this.copy = null;
+  }
+
+  flushLiteral() {
+    if (this.literals.length === 0) return;
+    const bytes = Buffer.concat(this.literals);
+    const op = Buffer.alloc(5);
+    op.writeUInt8(OP_LITERAL, 0);
+    op.writeUInt32BE(bytes.length, 1);
+    this.chunks.push(op, bytes);
+    this.literals = [];
+  }
+
+  addCopy(offset, length) {
+    this.addRemappedCopy(offset, length, []);
+  }
+
+  // Ids at offsets relative to the copied range are rewritten by the id map.
+  // Copies of adjacent ranges are merged, so renumbered modules following
+  // each other in the old tar cost a single op.
+  addRemappedCopy(offset, length, remapped) {
+    if (length === 0) return;
+    this.flushLiteral();
+    if (this.copy && this.copy.offset + this.copy.length === offset) {
+      const base = this.copy.length;
+      remapped.forEach((at) => this.copy.remapped.push(base + at));
+      this.copy.length += length;
+      return;
+    }
+
+    this.flushCopy();
+    this.copy = {offset, length, remapped: remapped.slice()};
+  }
+
+  // Only renumbered ids are written, ids missing in the map stay the same.
+  addIdMap(idMap) {
+    const pairs = [];
+    idMap.forEach((to, from) => {
+      if (from !== to) pairs.push([from, to]);
+    });
+
+    if (pairs.length === 0) return;
+    this.flushLiteral();
+    this.flushCopy();
+    const op = Buffer.alloc(5 + 8 * pairs.length);
+    op.writeUInt8(OP_ID_MAP, 0);
+    op.writeUInt32BE(pairs.length, 1);
+    pairs.forEach((pair, i) => {
+      op.writeUInt32BE(pair[0], 5 + 8 * i);
+      op.writeUInt32BE(pair[1], 9 + 8 * i);
+    });
+
+    this.chunks.push(op);
+  }
+
+  addLiteral(bytes) {
+    if (bytes.length === 0) return;
+    this.flushCopy();
+    this.literals.push(bytes);
+  }
+
+  finish(newTar) {
+    this.flushCopy();
+    this.flushLiteral();
+    const header = Buffer.alloc(4 + 8 + 32);
+    header.writeUInt32BE(MAGIC, 0);
+    header.writeUInt32BE(Math.floor(newTar.length / 0x100000000), 4);
+    header.writeUInt32BE(newTar.length % 0x100000000, 8);
+    crypto.createHash('sha256').update(newTar).digest().copy(header, 12);
+    return Buffer.concat([header].concat(this.chunks, [Buffer.from([OP_END])]));
+  }
+}
+
+// Builds a delta from oldTar to newTar. Files are matched by content hash, and
+// the JS bundle named bundleName is matched module by module, so modules
+// shifted or renumbered by an insertion are still copied from the old tar.
+function build(oldTar, newTar, bundleName) {
+  const files = {};
+  const modules = {};
+  members(oldTar).members.forEach((m) => {
+    if (m.type !== '0') return;
+    const content = oldTar.slice(m.content, m.content + m.size);
+    files[sha256(content)] = m.content;
+    if (m.name !== bundleName) return;
+    splitModules(oldTar, m.content, m.content + m.size).forEach((s) => {
+      const parsed = parseIds(oldTar.slice(s.start, s.end));
+      const hash = sha256(parsed.normalized);
+      if (modules[hash] !== undefined) return;
+      modules[hash] = {start: s.start, length: s.end - s.start, ids: parsed.ids};
+    });
+  });
+
+  const writer = new OpWriter();
+  const parsed = members(newTar);
+  const bundle = parsed.members.find((m) => m.type === '0' &&
+    m.name === bundleName &&
+    files[sha256(newTar.slice(m.content, m.content + m.size))] === undefined);
+  const matched = bundle ?
+    matchModules(modules, newTar, bundle.content, bundle.content + bundle.size) :
+    null;
+  if (matched) writer.addIdMap(matched.idMap);
+
+  parsed.members.forEach((m) => {
+    writer.addLiteral(newTar.slice(m.header, m.content));
+    const padded = Math.ceil(m.size / BLOCK_SIZE) * BLOCK_SIZE;
+    const contentEnd = m.content + m.size;
+    const content = newTar.slice(m.content, contentEnd);
+    if (m.type !== '0') {
+      writer.addLiteral(newTar.slice(m.content, m.content + padded));
+      return;
+    }
+
+    const hash = sha256(content);
+    if (files[hash] !== undefined) {
+      writer.addCopy(files[hash], m.size);
+    } else if (m === bundle) {
+      matched.matches.forEach((match) => {
+        if (match.at === undefined) writer.addLiteral(match.segment);
+        else writer.addRemappedCopy(match.at, match.length, match.remapped);
+      });
+    } else {
+      writer.addLiteral(content);
+    }
+
+    writer.addLiteral(newTar.slice(contentEnd, m.content + padded));
+  });
+
+  writer.addLiteral(newTar.slice(parsed.end));
+  return writer.finish(newTar);
+}
+
+// The same as RNAirModuleDelta.apply, used to verify a delta before shipping.
+function apply(oldTar, delta) {
+  var offset = 0;
+  if (delta.readUInt32BE(offset) !== MAGIC) throw new Error('Not a module delta');
+  const length = delta.readUInt32BE(4) * 0x100000000 + delta.readUInt32BE(8);
+  const checksum = delta.slice(12, 44);
+  offset = 44;
+  const parts = [];
+  const idMap = new Map();
+  while (delta[offset] !== OP_END) {
+    const op = delta[offset];
+    if (op === OP_ID_MAP) {
+      const count = delta.readUInt32BE(offset + 1);
+      for (var i = 0; i < count; ++i) {
+        idMap.set(delta.readUInt32BE(offset + 5 + 8 * i),
+          delta.readUInt32BE(offset + 9 + 8 * i));
+      }
+
+      offset += 5 + 8 * count;
+    } else if (op === OP_REMAPPED_COPY) {
+      const from = delta.readUInt32BE(offset + 1);
+      const end = from + delta.readUInt32BE(offset + 5);
+      const count = delta.readUInt32BE(offset + 9);
+      var copied = from;
+      for (var j = 0; j < count; ++j) {
+        const at = from + delta.readUInt32BE(offset + 13 + 4 * j);
+        var idEnd = at;
+        while (idEnd < end && oldTar[idEnd] >= 0x30 && oldTar[idEnd] <= 0x39) ++idEnd;
+        if (at < copied || idEnd === at) throw new Error('No module id at ' + at);
+        const id = parseInt(oldTar.slice(at, idEnd).toString('latin1'), 10);
+        const mapped = idMap.has(id) ? idMap.get(id) : id;
+        parts.push(oldTar.slice(copied, at), Buffer.from(String(mapped), 'latin1'));
+        copied = idEnd;
+      }
+
+      parts.push(oldTar.slice(copied, end));
+      offset += 13 + 4 * count;
+    } else if (op === OP_COPY) {
+      const from = delta.readUInt32BE(offset + 1);
+      parts.push(oldTar.slice(from, from + delta.readUInt32BE(offset + 5)));
+      offset += 9;
+    } else if (op === OP_LITERAL) {
+      const count = delta.readUInt32BE(offset + 1);
+      parts.push(delta.slice(offset + 5, offset + 5 + count));
+      offset += 5 + count;
+    } else {
+      throw new Error('Unknown op ' + op);
+    }
+  }
+
+  const result = Buffer.concat(parts);
+  if (result.length !== length ||
+    !crypto.createHash('sha256').update(result).digest().equals(checksum)) {
+    throw new Error('Tar rebuilt from the module delta does not match');
+  }
+
+  return result;
+}
+
+module.exports = {
+  build,
+  apply,
+  members,
+};
@@ -11,6 +11,7 @@ const fstream = require('fstream');
 const bs = require('node-addon-bsdiff');
 const bz2 = require('node-addon-bz2');
 const crypto = require('crypto');
+const moduleDelta = require('./module_delta');
 
 const PATCH_BASE = 'airlite';
 const ANDROID_JSBUNDLE_NAME = 'index.android';
@@ -20,7 +21,16 @@ const INTERMEDIATES = '.intermediates';
 const RAW_ASSETS = 'assets.tar';
 const BASE_PACKAGE = 'base';
 const PATCH_PACKAGE = 'patch';
+const DELTA_PACKAGE = 'delta';
 const NEWEST_PATCH = 'newest';
+const APK_PATCH = 'apk';
+const APK_BUNDLE = 'bundle';
+const LAZY_ASSETS = 'assets';
+const LAZY_MANIFEST = 'lazy.manifest';
+const LAZY_MANIFEST_VERSION = '1';
+const OBJECTS = 'objects';
+const POINTER_MANIFEST = 'manifest';
+const POINTER_MANIFEST_VERSION = '1';
 
 const HEADER_LENGTH = {
   PACK_VERSION: 1,
@@ -29,6 +39,11 @@ const HEADER_LENGTH = {
   RESERVED: 27
 };
 
+const PACK_VERSION = {
+  BSDIFF: 0x01,
+  MODULE_DELTA: 0x02
+};
+
 const LENGTH_HEADER = Object.keys(HEADER_LENGTH).reduce(
   (prev, k) => prev + HEADER_LENGTH[k], 0);
 
@@ -37,7 +52,8 @@ function loadAllPatches(patchBase) {
     if (p[0] === '.') return false;
     var isDigital = /^\d+$/.test(p);
     if (!isDigital) {
-      if (p !== NEWEST_PATCH) tr.warn(p + ' is not a valid patch version.');
+      if ([NEWEST_PATCH, APK_PATCH, LAZY_ASSETS, OBJECTS, POINTER_MANIFEST].indexOf(p) < 0)
+        tr.warn(p + ' is not a valid patch version.');
       return false;
     }
 
@@ -53,6 +69,19 @@ function loadAllPatches(patchBase) {
   }).map(p => parseInt(p)).sort((a, b) => b - a);
 }
 
+function loadAllApks(patchBase) {
+  const apkBase = path.join(patchBase, APK_PATCH);
+  if (!fs.existsSync(apkBase)) return [];
+  return fs.readdirSync(apkBase).filter(p => {
+    if (!/^\d+$/.test(p)) {
+      if (p[0] !== '.') tr.warn(p + ' is not a valid version code of APK.');
+      return false;
+    }
+
+    return fse.isRegularFile(path.join(apkBase, p, APK_BUNDLE));
+  });
+}
+
 function getBundleCommand(platform, patchDir, entry) {
   var bundleName;
   if (platform === 'ios') {
@@ -73,6 +102,18 @@ function getBundleCommand(platform, patchDir, entry) {
     patchDir);
 }
 
+function listFiles(root, dir) {
+  return fs.readdirSync(path.join(root, dir || '')).reduce((files, name) => {
+    const relative = dir ? dir + '/' + name : name;
+    if (fse.isRegularFile(path.join(root, relative))) {
+      files.push(relative);
+      return files;
+    }
+
+    return files.concat(listFiles(root, relative));
+  }, []).sort();
+}
+
 function loadPatchVersion(patchPath) {
   const fd = fs.openSync(patchPath, 'r');
   const buf = Buffer.alloc(HEADER_LENGTH.VERSION);
@@ -90,17 +131,19 @@ function loadPatchVersion(patchPath) {
 }
 
 class PatchManager {
-  constructor(platform, entry, newestVersion) {
+  constructor(platform, entry, newestVersion, lazyAssets) {
     if (platform !== 'android' && platform !== 'ios') {
       throw new Error('The platform must be android or ios');
     }
 
     this.platform = platform;
     this.entry = entry || 'index';
+    this.lazyAssets = lazyAssets || {};
 
     const patchBase = path.join(PATCH_BASE, this.platform);
     fse.mkdirSync(patchBase);
     this.patches = loadAllPatches(patchBase);
+    this.apks = loadAllApks(patchBase);
 
     if (this.patches.length > 0) {
       tr.info('Versions of patches loaded are', this.patches);
@@ -143,6 +186,102 @@ class PatchManager {
     }
   }
 
+  getApkPath(versionCode, file) {
+    return path.join(PATCH_BASE, this.platform, APK_PATCH, '' + versionCode,
+      file || '');
+  }
+
+  // The JS bundle embedded in an APK is the generation zero of all devices
+  // installed the APK. Patches against it are built along with others.
+  registerApk(versionCode, bundlePath) {
+    if (this.platform !== 'android')
+      throw new Error('Only bundles in APK could be registered');
+    if (!/^\d+$/.test('' + versionCode))
+      throw new Error('The version code of APK must be a number');
+    if (!fs.existsSync(bundlePath) || !fse.isRegularFile(bundlePath))
+      throw new Error(bundlePath + ' is not a regular file');
+
+    fse.mkdirSync(this.getApkPath(versionCode));
+    fs.writeFileSync(this.getApkPath(versionCode, APK_BUNDLE),
+      fs.readFileSync(bundlePath));
+    if (this.apks.indexOf('' + versionCode) < 0) this.apks.push('' + versionCode);
+    tr.info('The bundle of APK', versionCode, 'is registered.');
+  }
+
+  getLazyAssetPath(hash) {
+    return path.join(PATCH_BASE, this.platform, LAZY_ASSETS, hash || '');
+  }
+
+  // Moves assets larger than the threshold out of the package to
+  // assets/<sha256>, from where devices fetch them after the new bundle is
+  // activated. Hot assets matched by a prefix are always packed.
+  separateLazyAssets(dir) {
+    const minSize = this.lazyAssets.minSize;
+    if (!minSize) return;
+
+    const hot = this.lazyAssets.hot || [];
+    const lines = [LAZY_MANIFEST_VERSION];
+    var bytes = 0;
+    fse.mkdirSync(this.getLazyAssetPath());
+    listFiles(dir).forEach((file) => {
+      if (file === ANDROID_JSBUNDLE_NAME || file === IOS_JSBUNDLE_NAME) return;
+      if (hot.some((prefix) => file.indexOf(prefix) === 0)) return;
+      const fullPath = path.join(dir, file);
+      const size = fs.statSync(fullPath).size;
+      if (size < minSize) return;
+
+      const hash = crypto.createHash('sha256')
+        .update(fs.readFileSync(fullPath))
+        .digest('hex');
+      const dst = this.getLazyAssetPath(hash);
+      if (fs.existsSync(dst)) {
+        fse.rm(fullPath);
+      } else {
+        fse.replace(dst, fullPath);
+      }
+
+      lines.push(size + ' ' + hash + ' ' + file);
+      bytes += size;
+    });
+
+    fs.writeFileSync(path.join(dir, LAZY_MANIFEST), lines.join('\n') + '\n');
+    tr.info(lines.length - 1, 'assets of', bytes, 'bytes will be fetched lazily.');
+  }
+
+  // Copies every package to objects/<sha256> and points to them in a tiny
+  // manifest, which is the only file changed by a release. Objects never
+  // change, so CDN could cache them forever.
+  publishObjects() {
+    const objects = this.getPath(OBJECTS);
+    fse.mkdirSync(objects);
+    const newest = loadPatchVersion(this.getNewVersionPatchPath());
+    const lines = [POINTER_MANIFEST_VERSION, 'version ' + newest];
+    const publish = (kind, file, from) => {
+      if (!fs.existsSync(file)) return;
+      const bytes = fs.readFileSync(file);
+      const hash = crypto.createHash('sha256').update(bytes).digest('hex');
+      const objectPath = path.join(objects, hash);
+      if (!fs.existsSync(objectPath)) fs.writeFileSync(objectPath, bytes);
+      lines.push([kind].concat(from === undefined ? [] : ['' + from])
+        .concat([hash, bytes.length]).join(' '));
+    };
+
+    publish('base', this.getNewVersionPatchPath());
+    loadAllPatches(this.getPath()).forEach((version) => {
+      publish('patch', this.getPatchPath(version), version);
+      publish('delta', this.getDeltaPath(version), version);
+    });
+
+    loadAllApks(this.getPath()).forEach((versionCode) => {
+      publish('apk', this.getApkPath(versionCode, PATCH_PACKAGE), versionCode);
+    });
+
+    const temp = this.getPath(POINTER_MANIFEST + '.tmp');
+    fs.writeFileSync(temp, lines.join('\n') + '\n');
+    fs.renameSync(temp, this.getPath(POINTER_MANIFEST));
+    tr.info('The pointer manifest lists', lines.length - 2, 'objects.');
+  }
+
   getIntermediatesPath(file) {
     return this.getPath(INTERMEDIATES, file);
   }
@@ -171,11 +310,15 @@ class PatchManager {
     fse.mkdirSync(this.getIntermediatesPath());
   }
 
-  pack(content, fileOut) {
+  getDeltaPath(version) {
+    return this.getPath(version, DELTA_PACKAGE);
+  }
+
+  pack(content, fileOut, packVersion) {
     var patchBuf = bz2.compressSync(content);
 
     var header = Buffer.alloc(LENGTH_HEADER, 0);
-    header.writeUInt8(0x01);
+    header.writeUInt8(packVersion || PACK_VERSION.BSDIFF);
     header.writeUInt32BE(this.newVersion, HEADER_LENGTH.PACK_VERSION);
     var hasher = crypto.createHash('sha256');
     hasher.update(header);
@@ -188,6 +331,30 @@ class PatchManager {
     const temp = this.getIntermediatesPath('pack.tmp');
     fs.writeFileSync(temp, Buffer.concat([header, patchBuf]));
     fse.replace(fileOut, temp);
+    return LENGTH_HEADER + patchBuf.length;
+  }
+
+  // Devices try the module delta first and fall back to the bsdiff patch if
+  // it is missing, so it is only published when it is the smaller one.
+  packModuleDelta(version, assetsBytes, newAssetsBytes, patchLength) {
+    const deltaPath = this.getDeltaPath(version);
+    fse.rm(deltaPath);
+    const bundleName = this.platform === 'ios' ? IOS_JSBUNDLE_NAME : ANDROID_JSBUNDLE_NAME;
+    const delta = moduleDelta.build(assetsBytes, newAssetsBytes, bundleName);
+    if (!moduleDelta.apply(assetsBytes, delta).equals(newAssetsBytes))
+      throw new Error('The module delta for version ' + version + ' is broken');
+
+    const temp = this.getIntermediatesPath(DELTA_PACKAGE);
+    const deltaLength = this.pack(delta, temp, PACK_VERSION.MODULE_DELTA);
+    if (deltaLength >= patchLength) {
+      fse.rm(temp);
+      tr.info('The module delta for version', version, 'is not smaller than bsdiff');
+      return;
+    }
+
+    fse.replace(deltaPath, temp);
+    tr.info('Generating module delta for version', version, deltaPath,
+      deltaLength, 'vs', patchLength, 'bytes');
   }
 
   buildNewPatch() {
@@ -210,6 +377,7 @@ class PatchManager {
         }
 
         tr.verbose(stdout);
+        this.separateLazyAssets(intermediatesRawPatch);
         var packer = tar.Pack({
             noProprietary: true,
             fromBase: true,
@@ -226,8 +394,17 @@ class PatchManager {
               const assetsBytes = fs.readFileSync(this.getRawAssets(version));
               const patchRawBuf = bs.diff(assetsBytes, newAssetsBytes);
               const patchPath = this.getPatchPath(version);
-              this.pack(patchRawBuf, patchPath);
+              const patchLength = this.pack(patchRawBuf, patchPath);
               tr.info('Generating patch for version', version, patchPath);
+              this.packModuleDelta(version, assetsBytes, newAssetsBytes, patchLength);
+            });
+
+            this.apks.forEach((versionCode) => {
+              const bundleBytes = fs.readFileSync(
+                this.getApkPath(versionCode, APK_BUNDLE));
+              const patchPath = this.getApkPath(versionCode, PATCH_PACKAGE);
+              this.pack(bs.diff(bundleBytes, newAssetsBytes), patchPath);
+              tr.info('Generating patch for APK', versionCode, patchPath);
             });
 
             const newPatchPath = this.getNewPatchPath();
@@ -239,6 +416,7 @@ class PatchManager {
             fse.replace(this.getNewVersionRawPatch(), newAssetsTar);
             this.pack(newAssetsBytes, this.getNewVersionPatchPath());
             fse.rm(this.getIntermediatesPath());
+            this.publishObjects();
             tr.info('The newest patch version is', this.newVersion);
           });
 
@@ -0,0 +1,105 @@
+'use strict';
+
+// Run by `npm test`. Checks that inserting a module, which renumbers every
+// module after it, still yields a delta about as large as the new module.
+
+const assert = require('assert');
+const crypto = require('crypto');
+const moduleDelta = require('../module_delta');
+
+const BUNDLE_NAME = 'main.jsbundle';
+const MODULE_COUNT = 300;
+
+function tarEntry(name, content) {
+  const header = Buffer.alloc(512, 0);
+  header.write(name, 0, 'utf8');
+  header.write('0000644\0', 100, 'ascii');
+  header.write('0000000\0', 108, 'ascii');
+  header.write('0000000\0', 116, 'ascii');
+  header.write(('00000000000' + content.length.toString(8)).slice(-11) + '\0', 124, 'ascii');
+  header.write('00000000000\0', 136, 'ascii');
+  header.write('0', 156, 'ascii');
+  header.write('ustar\0', 257, 'ascii');
+  header.write('00', 263, 'ascii');
+  header.fill(' ', 148, 156);
+  var checksum = 0;
+  for (var i = 0; i < 512; ++i) checksum += header[i];
+  header.write(('000000' + checksum.toString(8)).slice(-6) + '\0 ', 148, 'ascii');
+  const padding = Buffer.alloc((512 - content.length % 512) % 512, 0);
+  return Buffer.concat([header, content, padding]);
+}
+
+function tar(files) {
+  const entries = Object.keys(files).map((name) => tarEntry(name, files[name]));
+  return Buffer.concat(entries.concat([Buffer.alloc(1024, 0)]));
+}
+
+// Module bodies are random, so they only match by content, not by accident.
+function createModules(count) {
+  const modules = [];
+  for (var i = 0; i < count; ++i) {
+    modules.push({
+      name: 'lib/module' + i + '.js',
+      body: 'var secret = "' + crypto.randomBytes(600).toString('hex') + '";\n',
+      deps: [(i * 7 + 1) % count, (i * 13 + 2) % count],
+    });
+  }
+
+  return modules;
+}
+
+// The layout of bundles built by the RN packager.
+function packagerBundle(modules) {
+  const ids = new Map(modules.map((m, i) => [m.name, i]));
+  return Buffer.from('(function(global) {\nglobal.__d=define;\n})(this);\n' +
+    modules.map((m) => '__d(' + ids.get(m.name) + ' /* ' + m.name + ' */, ' +
+      'function(global, require, module, exports) {' + m.body +
+      m.deps.map((d) => 'require(' + ids.get(modules[d].name) + ' /* dep */);\n').join('') +
+      '}, "' + m.name + '");\n').join('') +
+    ';require(0);', 'utf8');
+}
+
+// The layout of bundles built by Metro, with dependencies after the factory.
+function metroBundle(modules) {
+  const ids = new Map(modules.map((m, i) => [m.name, i]));
+  return Buffer.from('var __DEV__=false;\n' +
+    modules.map((m) => '__d(function(g, r, i, a, m, e, d) {' + m.body +
+      m.deps.map((d, i) => 'r(d[' + i + ']);\n').join('') +
+      '},' + ids.get(m.name) + ',[' + m.deps.map((d) => ids.get(modules[d].name)).join(',') +
+      '],"' + m.name + '");\n').join('') +
+    '__r(0);', 'utf8');
+}
+
+function checkInsertion(layout) {
+  const modules = createModules(MODULE_COUNT);
+  const inserted = {
+    name: 'lib/inserted.js',
+    body: 'var secret = "' + crypto.randomBytes(600).toString('hex') + '";\n',
+    deps: [3],
+  };
+
+  // Deps refer to positions in the old list, which shift by the insertion.
+  const shifted = modules.map((m) => ({
+    name: m.name,
+    body: m.body,
+    deps: m.deps.map((d) => d < 5 ? d : d + 1),
+  }));
+  const newModules = shifted.slice(0, 5).concat([inserted], shifted.slice(5));
+  const image = crypto.randomBytes(4096);
+  const oldTar = tar({[BUNDLE_NAME]: layout(modules), 'image.png': image});
+  const newTar = tar({[BUNDLE_NAME]: layout(newModules), 'image.png': image});
+
+  const delta = moduleDelta.build(oldTar, newTar, BUNDLE_NAME);
+  assert(moduleDelta.apply(oldTar, delta).equals(newTar), layout.name + ' delta is broken');
+
+  // The new module and tar headers, besides an entry of the id map and offsets
+  // of its 3 ids for each renumbered module. Without renumbering, all modules
+  // after the inserted one would be literals, i.e. most of the bundle.
+  const budget = inserted.body.length + 3 * 512 + 32 * MODULE_COUNT;
+  assert(delta.length < budget, layout.name + ' delta of ' + delta.length +
+    ' bytes exceeds ' + budget + ' bytes, while the bundle has ' + newTar.length);
+  console.log(layout.name, 'delta:', delta.length, 'bytes for a tar of', newTar.length);
+}
+
+checkInsertion(packagerBundle);
+checkInsertion(metroBundle);
@@ -14,11 +14,14 @@ function allEvents() {
     AirLite.EventProgress,
     AirLite.EventDownloaded,
     AirLite.EventInstalled,
+    AirLite.EventPreflight,
   ];
 }
 
-function init(uri, bundleVersion, storePatchInSD) {
-  AirLite.init(uri, bundleVersion, !!storePatchInSD);
+// With contentAddressed, packages are resolved through android/manifest
+// published by airpatch, so they could be cached by CDN forever.
+function init(uri, bundleVersion, storePatchInSD, contentAddressed) {
+  AirLite.init(uri, bundleVersion, !!storePatchInSD, !!contentAddressed);
 }
 
 function checkForUpdate() {
@@ -33,6 +36,50 @@ function installPatch(restartManually) {
   AirLite.installPatch(!!restartManually);
 }
 
+function installPatchWhenIdle() {
+  AirLite.installPatchWhenIdle();
+}
+
+// Pauses installs in background, and throttled downloads, while busy.
+function setBusy(busy) {
+  AirLite.setBusy(!!busy);
+}
+
+// Caps the rate patches are downloaded at. 0 removes the cap.
+function setDownloadRateLimit(bytesPerSecond) {
+  AirLite.setDownloadRateLimit(bytesPerSecond || 0);
+}
+
+// Reports how long a request of the app took, so throttled downloads back off
+// while requests get slower than usual.
+function reportRequestLatency(ms) {
+  AirLite.reportRequestLatency(ms);
+}
+
+// Resolves to a file:// URI of an asset, which is fetched first if the CLI
+// left it out of the patch. The path is relative to the folder of the bundle.
+//
+// Assets left out by --lazyAssetSize are not in the folder of the bundle, so
+// an Image with require() can't find them until they are fetched. Show them
+// by the URI resolved instead, e.g.
+//   resolveAsset('drawable-xhdpi/images_banner.png')
+//     .then(uri => this.setState({banner: {uri}}));
+// or call prefetchAssets() early and keep require() for assets not lazy.
+function resolveAsset(path) {
+  return AirLite.resolveAsset(path);
+}
+
+function prefetchAssets() {
+  AirLite.prefetchAssets();
+}
+
+// Resolves to the device profile and the parameters of the update pipeline
+// tuned by it. Throughputs are in bytes per millisecond, or -1 until the
+// device is measured at the first download or install.
+function getDeviceProfile() {
+  return AirLite.getDeviceProfile();
+}
+
 function restart() {
   AirLite.restart();
 }
@@ -49,6 +96,13 @@ module.exports = {
   checkForUpdate,
   downloadPatch,
   installPatch,
+  installPatchWhenIdle,
+  setBusy,
+  setDownloadRateLimit,
+  reportRequestLatency,
+  resolveAsset,
+  prefetchAssets,
+  getDeviceProfile,
   addEventListener,
   restart,
 };